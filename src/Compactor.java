@@ -0,0 +1,77 @@
+// By: Landon Prince (5/9/2024)
+
+/**
+ * Compactor runs Database.compact on a background thread in bounded batches, so
+ * tombstoned messages are reclaimed without a delete ever holding the database
+ * lock for a full list traversal
+ */
+public class Compactor implements AutoCloseable {
+    private final Database database;
+    private final int batchSize;
+    private final long intervalMillis;
+    private Thread thread;
+
+    /**
+     * Constructor -- configure a compactor for a database; call start to run it
+     * @param database -- the database to compact
+     * @param batchSize -- list positions inspected per compact call (lock hold time)
+     * @param intervalMillis -- pause between batches; also the poll interval when idle
+     * Note: throws IllegalArgumentException if batchSize is not positive or interval is negative
+     */
+    public Compactor(Database database, int batchSize, long intervalMillis) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive.");
+        }
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException("Interval must not be negative.");
+        }
+        this.database = database;
+        this.batchSize = batchSize;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * start -- start the background compaction thread
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            throw new IllegalStateException("Compactor already started.");
+        }
+        thread = new Thread(this::run, "database-compactor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * close -- stop the background thread and wait for it to finish its current batch
+     */
+    public synchronized void close() {
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    private void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                database.compact(batchSize);
+                if (database.getPendingTombstones() == 0) {
+                    Thread.sleep(Math.max(intervalMillis, 1));
+                } else if (intervalMillis > 0) {
+                    Thread.sleep(intervalMillis);
+                } else {
+                    Thread.yield();
+                }
+            }
+        } catch (InterruptedException e) {
+            // close() asked us to stop
+        }
+    }
+}
@@ -1,8 +1,19 @@
 // By: Landon Prince (5/9/2024)
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Consumer;
+
 /**
  * Database class contains linked list of message objects, and includes
- * many methods to store, retrieve, and manipulate messages
+ * many methods to store, retrieve, and manipulate messages.
+ * Deletes only mark nodes as tombstones; compact (or a Compactor thread) unlinks
+ * them later. A capacity and an EvictionPolicy can bound the collection, in which
+ * case insert evicts messages automatically. All public methods are synchronized
+ * on the database, except the deletes by sender or timestamp, which lock it once per
+ * batch of DELETE_BATCH messages.
  */
 public class Database {
     /**
@@ -12,6 +23,15 @@ public class Database {
     public static class MessageNode {
         public Message message;
         public MessageNode next;
+        public int senderId;
+        public boolean deleted;
+        // links in the sender's list of live nodes, in insertion order
+        MessageNode senderPrev;
+        MessageNode senderNext;
+        // the index block currently holding this node
+        NodeIndex.Block block;
+        // insertion sequence number; a batched delete skips nodes newer than its start
+        long seq;
 
         public MessageNode() {
             this(new Message(), null);
@@ -27,21 +47,89 @@ public class Database {
         }
     }
 
+    /**
+     * per-sender bookkeeping: the sender name, its live nodes as a list threaded
+     * through MessageNode.senderPrev/senderNext (in insertion order) and their count.
+     * An entry is dropped as soon as its sender has no live messages left.
+     */
+    private static class SenderEntry {
+        private final String name;
+        private MessageNode first;
+        private MessageNode last;
+        private int live;
+
+        private SenderEntry(String name) {
+            this.name = name;
+        }
+    }
+
+    // deletes tombstone at most this many messages per acquisition of the database lock
+    static final int DELETE_BATCH = 1024;
+
     private int numMessages;
     private MessageNode messageList;
+    // the nodes of messageList in list order, for O(log n) seeks and live ranks
+    private final NodeIndex index;
+    // multiplicity of each stored message, only kept in dedup mode (null otherwise)
+    private final HashMap<Message, Integer> seenMessages;
+    // sender interning: name -> id and id -> entry (null once retired), plus retired ids
+    private final HashMap<String, Integer> senderIds;
+    private final ArrayList<SenderEntry> senders;
+    private final ArrayDeque<Integer> freeSenderIds;
+    // flyweight handed to visitors by forEach
+    private final MessageView view;
+    // tombstones still linked into the list, and compaction progress
+    private int tombstones;
+    private long reclaimedTotal;
+    private long backlogSince;
+    // index block the next compact call starts at
+    private int compactCursor;
+    // sequence number of the latest insert; never reset
+    private long insertSeq;
+    // bounded mode: limits (0 = unbounded), policy, sink and live byte estimate
+    private int maxMessages;
+    private long maxBytes;
+    private EvictionPolicy evictionPolicy;
+    private Consumer<Message> evictionSink;
+    private long numBytes;
+    private int newestTimestamp;
+    private long evictedTotal;
 
     /**
      * Default Constructor -- Create an empty collection (one with zero messages).
      */
     public Database() {
+        this(false);
+    }
+
+    /**
+     * Alternate Constructor -- Create an empty collection, optionally in dedup mode.
+     * In dedup mode the database keeps a hash index over message contents so that
+     * insertIfAbsent can detect an already stored message in O(1).
+     * @param dedup - true to enable duplicate detection
+     */
+    public Database(boolean dedup) {
         numMessages = 0;
         messageList = null;
+        index = new NodeIndex();
+        seenMessages = dedup ? new HashMap<>() : null;
+        senderIds = new HashMap<>();
+        senders = new ArrayList<>();
+        freeSenderIds = new ArrayDeque<>();
+        view = new MessageView();
+    }
+
+    /**
+     * isDedup -- Returns true if the database was created in dedup mode
+     */
+    public boolean isDedup() {
+        return seenMessages != null;
     }
 
     /**
      * isEmpty -- Returns true if the database is empty (contains no messages)
      */
-    public boolean isEmpty() {
+    public synchronized boolean isEmpty() {
         return numMessages == 0;
     }
 
@@ -49,7 +137,7 @@ public class Database {
     /**
      * getNumMessages -- Return the total number of Messages in the collection.
      */
-    public int getNumMessages() {
+    public synchronized int getNumMessages() {
         return numMessages;
     }
 
@@ -60,15 +148,11 @@ public class Database {
      * @param  index - the index of the desired message; using zero-based indexing
      * @return message - the message at the specified index
      */
-    public Message retrieve(int index) {
+    public synchronized Message retrieve(int index) {
         if (index < 0 || index >= numMessages) {
             throw new IllegalArgumentException("Invalid index");
         }
-        MessageNode current = messageList;
-        for (int i = 0; i < index; i++) {
-            current = current.next;
-        }
-        return current.message;
+        return this.index.liveAt(index).message;
     }
 
     /**
@@ -77,14 +161,72 @@ public class Database {
      * @param ts - the timestamp we are supposed to check
      * @return bool - true if such a message exists, otherwise false
      */
-    public boolean contains(int ts) {
-        MessageNode current = messageList;
-        for (int i = 0; current != null; current = current.next) {
-            if (current.message.sameTime(ts)) {
-                return true;
-            }
+    public synchronized boolean contains(int ts) {
+        return indexOf(ts) >= 0;
+    }
+
+    /**
+     * indexOf(int ts)
+     * Purpose: Returns the index of the first message with the given timestamp
+     * @param ts - the timestamp to look for
+     * @return int - index of the earliest inserted message sent at ts, or -1 if none
+     */
+    public synchronized int indexOf(int ts) {
+        int rank = index.liveRank(index.lowerBound(ts));
+        if (rank < numMessages && index.liveAt(rank).message.sameTime(ts)) {
+            return rank;
         }
-        return false;
+        return -1;
+    }
+
+    /**
+     * floor(int ts)
+     * Purpose: Returns the message at or just before the given timestamp. Among messages
+     *          with equal timestamps this is the last one in sorted order, matching insert.
+     * @param ts - the timestamp to search from
+     * @return message - the latest message with timestamp <= ts, or null if none
+     */
+    public synchronized Message floor(int ts) {
+        int rank = index.liveRank(index.upperBound(ts));
+        return rank > 0 ? index.liveAt(rank - 1).message : null;
+    }
+
+    /**
+     * ceiling(int ts)
+     * Purpose: Returns the message at or just after the given timestamp. Among messages
+     *          with equal timestamps this is the first one in sorted order.
+     * @param ts - the timestamp to search from
+     * @return message - the earliest message with timestamp >= ts, or null if none
+     */
+    public synchronized Message ceiling(int ts) {
+        int rank = index.liveRank(index.lowerBound(ts));
+        return rank < numMessages ? index.liveAt(rank).message : null;
+    }
+
+    /**
+     * window(int ts, int before, int after)
+     * Purpose: Returns the message at or just before ts (see floor) together with up to
+     *          'before' messages preceding it and up to 'after' messages following it.
+     *          If every message is later than ts, the window is anchored at ceiling(ts).
+     *          O(log n + before + after), however many deleted messages await compaction.
+     * @param ts - the timestamp to center the window on
+     * @param before - maximum number of messages before the anchor
+     * @param after - maximum number of messages after the anchor
+     * @return list of messages in sorted order; empty if the collection is empty
+     */
+    public synchronized List<Message> window(int ts, int before, int after) {
+        if (before < 0 || after < 0) {
+            throw new IllegalArgumentException("Window size must not be negative");
+        }
+        List<Message> messages = new ArrayList<>();
+        if (isEmpty()) {
+            return messages;
+        }
+        int anchor = Math.max(index.liveRank(index.upperBound(ts)) - 1, 0);
+        int from = Math.max(anchor - before, 0);
+        int to = (int) Math.min((long) anchor + after + 1, numMessages);
+        index.forLive(from, to, node -> messages.add(node.message));
+        return messages;
     }
 
     /**
@@ -93,15 +235,9 @@ public class Database {
      * @param sender - the author of the messages we are to count
      * @return int - the number of messages from the specified sender
      */
-    public int count(String sender) {
-        int count = 0;
-        MessageNode current = messageList;
-        for (int i = 0; current != null; current = current.next) {
-            if (current.message.getUser().equals(sender)) {
-                count++;
-            }
-        }
-        return count;
+    public synchronized int count(String sender) {
+        Integer id = senderIds.get(sender);
+        return id == null ? 0 : senders.get(id).live;
     }
 
     /**
@@ -111,11 +247,13 @@ public class Database {
      *             message followed immediately by a newline character.
      *             Returns an empty string if the collection is empty
      */
-    public String toString() {
+    public synchronized String toString() {
         StringBuilder messageString = new StringBuilder();
         MessageNode current = messageList;
         for (int i = 0; current!= null; current = current.next) {
-            messageString.append(current.message.toString()).append("\n");
+            if (!current.deleted) {
+                messageString.append(current.message.toString()).append("\n");
+            }
         }
         return messageString.toString();
     }
@@ -127,11 +265,11 @@ public class Database {
      * @return string - containing all the messages from the specified author, in sorted order,
      *    with each message followed immediately by a newline character.
      */
-    public String toString(String sender) {
+    public synchronized String toString(String sender) {
         StringBuilder messageString = new StringBuilder();
         MessageNode current = messageList;
         for (int i = 0; current!= null; current = current.next) {
-            if (current.message.getUser().equals(sender)) {
+            if (!current.deleted && current.message.getUser().equals(sender)) {
                 messageString.append(current.message.toString()).append("\n");
             }
         }
@@ -145,11 +283,11 @@ public class Database {
      * @return string - containing all the matching messages, in sorted order,
      *        each message followed immediately by a newline character.
      */
-    public String toString(int ts) {
+    public synchronized String toString(int ts) {
         StringBuilder messageString = new StringBuilder();
         MessageNode current = messageList;
         for (int i = 0; current!= null; current = current.next) {
-            if (current.message.sameTime(ts)) {
+            if (!current.deleted && current.message.sameTime(ts)) {
                 messageString.append(current.message.toString()).append("\n");
             }
         }
@@ -164,20 +302,88 @@ public class Database {
      * @return  string containing all the matching messages, in sorted order,
      *      each message followed immediately by a newline character.
      */
-    public String toString(int ts1, int ts2) {
+    public synchronized String toString(int ts1, int ts2) {
         StringBuilder messageString = new StringBuilder();
         int minTimeStamp = Math.min(ts1,ts2);
         int maxTimeStamp = Math.max(ts1,ts2);
         MessageNode current = messageList;
         for (int i = 0; current!= null; current = current.next) {
             int timeStamp = current.message.getTimestamp();
-            if (timeStamp >= minTimeStamp && timeStamp <= maxTimeStamp) {
+            if (!current.deleted && timeStamp >= minTimeStamp && timeStamp <= maxTimeStamp) {
                 messageString.append(current.message.toString()).append("\n");
             }
         }
         return messageString.toString();
     }
 
+    /**
+     * senderId(String sender)
+     * Purpose:  Returns the database-local id used for a sender in forEach. Ids stay
+     *           valid while the sender has messages stored and may be reused afterwards.
+     * @param sender - the author to look up
+     * @return int - the sender id, or -1 if the sender has no messages stored
+     */
+    public synchronized int senderId(String sender) {
+        Integer id = senderIds.get(sender);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * senderName(int id)
+     * Purpose:  Returns the sender name for an id handed out by senderId / forEach
+     * @param id - the sender id
+     * @return String - the sender name
+     */
+    public synchronized String senderName(int id) {
+        if (id < 0 || id >= senders.size() || senders.get(id) == null) {
+            throw new IllegalArgumentException("Invalid sender id");
+        }
+        return senders.get(id).name;
+    }
+
+    /**
+     * forEach(MessageVisitor visitor)
+     * Purpose:  Visit every message in sorted order without allocating per message
+     * @param visitor - called once per message with a reused flyweight view
+     */
+    public void forEach(MessageVisitor visitor) {
+        forEach(0, Integer.MAX_VALUE, visitor);
+    }
+
+    /**
+     * forEach(int ts1, int ts2, MessageVisitor visitor)
+     * Purpose:  Visit all messages in a range of two given timestamps, in sorted order,
+     *           without allocating per message. The visitor runs while the database
+     *           is locked, so it must not block.
+     * @param ts1 -- a timestamp
+     * @param ts2 -- a timestamp
+     * @param visitor - called once per message with a reused flyweight view
+     */
+    public synchronized void forEach(int ts1, int ts2, MessageVisitor visitor) {
+        int minTimeStamp = Math.min(ts1, ts2);
+        int maxTimeStamp = Math.max(ts1, ts2);
+        int from = index.liveRank(index.lowerBound(minTimeStamp));
+        int to = index.liveRank(index.upperBound(maxTimeStamp));
+        index.forLive(from, to, node -> {
+            view.point(node.message, node.senderId);
+            visitor.visit(node.message.getTimestamp(), node.senderId, view);
+            return true;
+        });
+    }
+
+    /**
+     * liveMessages() -- snapshot of the live messages in sorted order
+     */
+    private synchronized List<Message> liveMessages() {
+        List<Message> messages = new ArrayList<>(numMessages);
+        for (MessageNode current = messageList; current != null; current = current.next) {
+            if (!current.deleted) {
+                messages.add(current.message);
+            }
+        }
+        return messages;
+    }
+
     /**
      * equals(Object other)
      * Purpose:  compare two objects for equality
@@ -189,18 +395,8 @@ public class Database {
             return true;
         }
         if (other instanceof Database otherDatabase) {
-            if (this.numMessages != otherDatabase.numMessages) {
-                return false;
-            }
-            MessageNode current = this.messageList;
-            MessageNode otherCurrent = otherDatabase.messageList;
-            for (int i = 0; current != null; current = current.next,
-                    otherCurrent = otherCurrent.next) {
-                if (!current.message.equals(otherCurrent.message)) {
-                    return false;
-                }
-            }
-            return true;
+            // snapshot one side first so two threads comparing a and b can't deadlock
+            return this.liveMessages().equals(otherDatabase.liveMessages());
         }
         return false;
     }
@@ -209,33 +405,179 @@ public class Database {
      * insert(Message)
      * Purpose: add/insert a message to the collection of message objects
      * @param  message - the message to be added
-     * @return int - the index position of the inserted message
+     * @return int - the index position of the inserted message, or -1 if the
+     *         eviction policy evicted it straight away
      */
-    public int insert(Message message) {
+    public synchronized int insert(Message message) {
         MessageNode newNode = new MessageNode(message);
-        if (isEmpty()) {
-            messageList = newNode;
-            numMessages++;
-            return 0;
+        newNode.seq = ++insertSeq;
+        newNode.senderId = internSender(message.getUser());
+        SenderEntry sender = senders.get(newNode.senderId);
+        newNode.senderPrev = sender.last;
+        if (sender.last != null) {
+            sender.last.senderNext = newNode;
+        } else {
+            sender.first = newNode;
         }
-        MessageNode current = messageList;
-        MessageNode prev = null;
-        int index = 0;
-        while (current != null && message.getTimestamp() >=
-                current.message.getTimestamp()) {
-            prev = current;
-            current = current.next;
-            index++;
-        }
-        if (prev != null) {
-            newNode.next = current;
+        sender.last = newNode;
+        sender.live++;
+        track(message);
+        // equal timestamps keep insertion order, so seek past all of them
+        int position = index.insert(newNode);
+        if (position > 0) {
+            MessageNode prev = index.get(position - 1);
+            newNode.next = prev.next;
             prev.next = newNode;
         } else {
             newNode.next = messageList;
             messageList = newNode;
         }
         numMessages++;
-        return index;
+        numBytes += estimateBytes(message);
+        newestTimestamp = Math.max(newestTimestamp, message.getTimestamp());
+        if (isBounded()) {
+            evict(newNode);
+        }
+        int rank = newNode.deleted ? -1 : index.liveRank(position);
+        // without this, evicted tombstones would pile up unless a Compactor is running
+        if (isBounded() && tombstones > numMessages + 32) {
+            compact(Integer.MAX_VALUE);
+        }
+        return rank;
+    }
+
+    /**
+     * insertIfAbsent(Message)
+     * Purpose: insert a message only if an equal message (same user, text and timestamp)
+     *          is not already stored. O(1) duplicate check in dedup mode; otherwise
+     *          O(log n + r), scanning only the r messages with the same timestamp.
+     * @param  message - the message to be added
+     * @return int - the index position of the inserted message, or -1 if it was a duplicate
+     */
+    public synchronized int insertIfAbsent(Message message) {
+        if (containsMessage(message)) {
+            return -1;
+        }
+        return insert(message);
+    }
+
+    /**
+     * containsMessage(Message)
+     * Purpose: Returns true if an equal message (same user, text and timestamp) is stored
+     * @param message - the message to look for
+     * @return bool - true if such a message exists, otherwise false
+     */
+    public synchronized boolean containsMessage(Message message) {
+        if (seenMessages != null) {
+            return seenMessages.containsKey(message);
+        }
+        int ts = message.getTimestamp();
+        boolean[] found = new boolean[1];
+        index.forLive(index.liveRank(index.lowerBound(ts)), index.liveRank(index.upperBound(ts)),
+                node -> {
+                    found[0] = node.message.equals(message);
+                    return !found[0];
+                });
+        return found[0];
+    }
+
+    /**
+     * internSender(String) -- return the id of a sender, assigning the next free id if new
+     */
+    private int internSender(String sender) {
+        Integer id = senderIds.get(sender);
+        if (id == null) {
+            id = freeSenderIds.poll();
+            if (id == null) {
+                id = senders.size();
+                senders.add(null);
+            }
+            senderIds.put(sender, id);
+            senders.set(id, new SenderEntry(sender));
+        }
+        return id;
+    }
+
+    /**
+     * track(Message) -- record a stored message in the dedup index (dedup mode only)
+     */
+    private void track(Message message) {
+        if (seenMessages != null) {
+            seenMessages.merge(message, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * untrack(Message) -- forget one stored copy of a message in the dedup index
+     */
+    private void untrack(Message message) {
+        if (seenMessages != null) {
+            seenMessages.computeIfPresent(message, (m, n) -> n == 1 ? null : n - 1);
+        }
+    }
+
+    /**
+     * tombstone(MessageNode) -- logically delete a live node; it stays linked until compacted
+     */
+    private void tombstone(MessageNode node) {
+        node.deleted = true;
+        index.markDeleted(node);
+        numMessages--;
+        numBytes -= estimateBytes(node.message);
+        unlinkSender(node);
+        untrack(node.message);
+        if (tombstones++ == 0) {
+            backlogSince = System.nanoTime();
+        }
+    }
+
+    /**
+     * unlinkSender(MessageNode) -- remove a node from its sender's live list, and drop
+     * the sender entry once it has no live messages so its id can be reused
+     */
+    private void unlinkSender(MessageNode node) {
+        SenderEntry sender = senders.get(node.senderId);
+        if (node.senderPrev != null) {
+            node.senderPrev.senderNext = node.senderNext;
+        } else {
+            sender.first = node.senderNext;
+        }
+        if (node.senderNext != null) {
+            node.senderNext.senderPrev = node.senderPrev;
+        } else {
+            sender.last = node.senderPrev;
+        }
+        node.senderPrev = null;
+        node.senderNext = null;
+        if (--sender.live == 0) {
+            senderIds.remove(sender.name);
+            senders.set(node.senderId, null);
+            freeSenderIds.push(node.senderId);
+        }
+    }
+
+    /**
+     * deleteBetween(int minTs, int maxTs) -- tombstone the messages with timestamps in
+     * [minTs, maxTs] that were stored when the call began, DELETE_BATCH at a time,
+     * releasing the lock between batches
+     * @return the number of messages deleted
+     */
+    private int deleteBetween(int minTs, int maxTs) {
+        long since;
+        synchronized (this) {
+            since = insertSeq;
+        }
+        int count = 0;
+        while (true) {
+            synchronized (this) {
+                int deleted = index.deleteLive(index.lowerBound(minTs), index.upperBound(maxTs),
+                        since, DELETE_BATCH, this::tombstone);
+                count += deleted;
+                if (deleted < DELETE_BATCH) {
+                    return count;
+                }
+            }
+        }
     }
 
     /**
@@ -243,97 +585,293 @@ public class Database {
      * Purpose: Deletes all messages from the collection
      * @return  int - the number of messages deleted
      */
-    public int deleteMessages() {
+    public synchronized int deleteMessages() {
         int count = numMessages;
         numMessages = 0;
         messageList = null;
+        index.clear();
+        senderIds.clear();
+        senders.clear();
+        freeSenderIds.clear();
+        if (seenMessages != null) {
+            seenMessages.clear();
+        }
+        reclaimedTotal += tombstones;
+        tombstones = 0;
+        backlogSince = 0;
+        compactCursor = 0;
+        numBytes = 0;
+        newestTimestamp = 0;
         return count;
     }
 
     /**
      * deleteMessages(String sender)
-     * Purpose:    Delete all messages from the specified sender
+     * Purpose:    Delete all messages from the specified sender that are stored when the
+     *             call begins; messages inserted while it runs are kept. Works in batches
+     *             of DELETE_BATCH messages and releases the database lock between them,
+     *             so other threads can run in between and may see the delete half done.
+     *             The lock is held for O(DELETE_BATCH log n) at a time; the total work
+     *             is O(k log n) for k messages, touching only that sender's messages.
      * @param  sender - author of messages to be deleted, comparison is case-sensitive
      * @return number of messages deleted (int value)
      */
     public int deleteMessages(String sender) {
-        MessageNode current = messageList;
-        MessageNode prev = null;
+        long since;
+        synchronized (this) {
+            since = insertSeq;
+        }
         int count = 0;
-        while (current != null) {
-            if (current.message.getUser().equals(sender)) {
-                if (prev != null) {
-                    prev.next = current.next;
-                } else {
-                    messageList = current.next;
+        while (true) {
+            synchronized (this) {
+                Integer id = senderIds.get(sender);
+                MessageNode node = id == null ? null : senders.get(id).first;
+                // the sender list is in insertion order, so newer nodes come last
+                for (int batch = 0; node != null && node.seq <= since && batch < DELETE_BATCH; batch++) {
+                    MessageNode next = node.senderNext;
+                    tombstone(node);
+                    count++;
+                    node = next;
+                }
+                if (node == null || node.seq > since) {
+                    return count;
                 }
-                current = current.next;
-                count++;
-                numMessages--;
-            } else {
-                prev = current;
-                current = current.next;
             }
         }
-        return count;
     }
 
     /**
      * deleteMessages(int ts)
      * Purpose:    Deletes all messages whose timestamps are earlier than the parameter ts
+     *             and that are stored when the call begins; messages inserted while it
+     *             runs are kept. Works in batches of DELETE_BATCH messages and releases
+     *             the database lock between them, so other threads can run in between
+     *             and may see the delete half done. A batch holds the lock for O(log n)
+     *             per index block it touches (blocks holding only tombstones are jumped
+     *             over) plus O(DELETE_BATCH log n); the total work is O(k log n) for k
+     *             deleted messages.
      * @param  ts - the specified timestamp
      * @return the number of messages deleted (int value)
      */
     public int deleteMessages(int ts) {
-        MessageNode current = messageList;
-        MessageNode prev = null;
-        int count = 0;
-        while (current != null) {
-            if (current.message.getTimestamp() < ts) {
-                if (prev != null) {
-                    prev.next = current.next;
-                } else {
-                    messageList = current.next;
-                }
-                current = current.next;
-                count++;
-                numMessages--;
-            } else {
-                prev = current;
-                current = current.next;
-            }
-        }
-        return count;
+        return ts == Integer.MIN_VALUE ? 0 : deleteBetween(Integer.MIN_VALUE, ts - 1);
     }
 
     /**
      * deleteMessages(int ts1, int ts2)
-     * Purpose:    Deletes all messages between a range of two given timestamps
+     * Purpose:    Deletes all messages between a range of two given timestamps, in
+     *             batches and with the same cost as deleteMessages(int ts)
      * @param ts1 - one timestamp
      * @param ts2 - the other timestamp
      * @return  number of messages deleted (int value)
      */
     public int deleteMessages(int ts1, int ts2) {
-        MessageNode current = messageList;
-        MessageNode prev = null;
-        int count = 0;
-        while (current != null) {
-            int timestamp = current.message.getTimestamp();
-            if ((timestamp >= Math.min(ts1, ts2)) && (timestamp <= Math.max(ts1, ts2))) {
-                if (prev != null) {
-                    prev.next = current.next;
+        return deleteBetween(Math.min(ts1, ts2), Math.max(ts1, ts2));
+    }
+
+    /**
+     * compact(int maxEntries)
+     * Purpose:    Physically unlink tombstoned messages, one index block at a time, until
+     *             about maxEntries entries have been inspected (always at least one block).
+     *             Blocks without tombstones count as one entry. Successive calls resume
+     *             where the last one stopped and wrap around, so repeated calls eventually
+     *             reclaim every tombstone.
+     * @param maxEntries - bound on the entries inspected by this call
+     * @return number of tombstones reclaimed (int value)
+     */
+    public synchronized int compact(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        int reclaimed = 0;
+        int inspected = 0;
+        while (tombstones > 0 && inspected < maxEntries) {
+            if (compactCursor >= index.blockCount()) {
+                compactCursor = 0;
+            }
+            NodeIndex.Block block = index.block(compactCursor);
+            int entries = block.nodes.size();
+            if (block.live == entries) {
+                inspected++;
+                compactCursor++;
+                continue;
+            }
+            inspected += entries;
+            MessageNode prev = index.before(compactCursor);
+            for (MessageNode node : block.nodes) {
+                if (node.deleted) {
+                    if (prev != null) {
+                        prev.next = node.next;
+                    } else {
+                        messageList = node.next;
+                    }
                 } else {
-                    messageList = current.next;
+                    prev = node;
                 }
-                current = current.next;
-                count++;
-                numMessages--;
-            } else {
-                prev = current;
-                current = current.next;
             }
+            int removed = index.removeDeleted(compactCursor);
+            tombstones -= removed;
+            reclaimed += removed;
+            compactCursor++;
         }
-        return count;
+        reclaimedTotal += reclaimed;
+        if (tombstones == 0) {
+            backlogSince = 0;
+        }
+        return reclaimed;
+    }
+
+    /**
+     * setCapacity(int maxMessages, long maxBytes)
+     * Purpose:    Bound the collection; insert evicts messages (see setEvictionPolicy) while
+     *             either limit is exceeded. Limits apply from the next insert on.
+     * @param maxMessages - maximum number of messages, 0 for no limit
+     * @param maxBytes - maximum estimated size of the messages in bytes, 0 for no limit
+     */
+    public synchronized void setCapacity(int maxMessages, long maxBytes) {
+        if (maxMessages < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative");
+        }
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * setEvictionPolicy(EvictionPolicy policy)
+     * Purpose:    Choose which messages insert evicts. Without a policy, a bounded database
+     *             evicts the message with the oldest timestamp first.
+     * @param policy - the eviction policy, or null for oldest-timestamp-first
+     */
+    public synchronized void setEvictionPolicy(EvictionPolicy policy) {
+        this.evictionPolicy = policy;
+    }
+
+    /**
+     * setEvictionSink(Consumer<Message> sink)
+     * Purpose:    Receive every evicted message. The sink runs while the database is locked.
+     * @param sink - callback for evicted messages, or null to drop them
+     */
+    public synchronized void setEvictionSink(Consumer<Message> sink) {
+        this.evictionSink = sink;
+    }
+
+    /**
+     * getNumBytes -- estimated size in bytes of the messages in the collection
+     */
+    public synchronized long getNumBytes() {
+        return numBytes;
+    }
+
+    /**
+     * getEvictedCount -- total number of messages evicted by insert
+     */
+    public synchronized long getEvictedCount() {
+        return evictedTotal;
+    }
+
+    /**
+     * isOverCapacity -- true if either configured limit is exceeded
+     */
+    synchronized boolean isOverCapacity() {
+        return (maxMessages > 0 && numMessages > maxMessages) || (maxBytes > 0 && numBytes > maxBytes);
+    }
+
+    /**
+     * getNewestTimestamp -- the largest timestamp inserted since the last deleteMessages()
+     */
+    synchronized int getNewestTimestamp() {
+        return newestTimestamp;
+    }
+
+    /**
+     * oldestLive -- the live node with the oldest timestamp, or null if empty
+     */
+    synchronized MessageNode oldestLive() {
+        return numMessages > 0 ? index.liveAt(0) : null;
+    }
+
+    /**
+     * oldestOfSender -- the earliest inserted live node of a sender, or null if none
+     */
+    synchronized MessageNode oldestOfSender(int senderId) {
+        SenderEntry sender = senders.get(senderId);
+        return sender == null ? null : sender.first;
+    }
+
+    /**
+     * senderCount -- number of live messages of a sender id
+     */
+    synchronized int senderCount(int senderId) {
+        SenderEntry sender = senders.get(senderId);
+        return sender == null ? 0 : sender.live;
+    }
+
+    /**
+     * retainedSenders -- number of senders the database still keeps state for
+     */
+    synchronized int retainedSenders() {
+        return senderIds.size();
+    }
+
+    /**
+     * isBounded() -- true if insert has to consult the eviction policy
+     */
+    private boolean isBounded() {
+        return maxMessages > 0 || maxBytes > 0 || evictionPolicy != null;
+    }
+
+    /**
+     * evict(MessageNode inserted) -- evict until the policy and the capacity are satisfied
+     */
+    private void evict(MessageNode inserted) {
+        while (true) {
+            boolean overCapacity = isOverCapacity();
+            MessageNode victim = evictionPolicy == null ? null
+                    : evictionPolicy.victim(this, inserted, overCapacity);
+            if (victim == null && overCapacity) {
+                victim = oldestLive();
+            }
+            if (victim == null) {
+                return;
+            }
+            if (victim.deleted) {
+                throw new IllegalStateException("Eviction policy chose a deleted message");
+            }
+            tombstone(victim);
+            evictedTotal++;
+            if (evictionSink != null) {
+                evictionSink.accept(victim.message);
+            }
+        }
+    }
+
+    /**
+     * estimateBytes(Message) -- rough heap footprint of a message and its node
+     */
+    private static long estimateBytes(Message message) {
+        return 96 + 2L * (message.getUser().length() + message.getText().length());
+    }
+
+    /**
+     * getPendingTombstones -- number of deleted messages not yet reclaimed by compact
+     */
+    public synchronized int getPendingTombstones() {
+        return tombstones;
+    }
+
+    /**
+     * getReclaimedCount -- total number of tombstones reclaimed so far
+     */
+    public synchronized long getReclaimedCount() {
+        return reclaimedTotal;
+    }
+
+    /**
+     * getReclaimLagMillis -- milliseconds since the tombstone backlog was last empty,
+     * or 0 if nothing is waiting to be reclaimed
+     */
+    public synchronized long getReclaimLagMillis() {
+        return tombstones == 0 ? 0 : (System.nanoTime() - backlogSince) / 1_000_000;
     }
 
     /**
@@ -341,13 +879,11 @@ public class Database {
      * The clone should have its own list (of the same size) and contain all the messages
      * of 'this' object.
      */
-    public Database clone() {
-        Database clonedDatabase = new Database();
-        MessageNode current = messageList;
-        while (current != null) {
-            clonedDatabase.insert(new Message(current.message.getUser(),
-                    current.message.getText(), current.message.getTimestamp()));
-            current = current.next;
+    public synchronized Database clone() {
+        Database clonedDatabase = new Database(isDedup());
+        for (Message message : liveMessages()) {
+            clonedDatabase.insert(new Message(message.getUser(), message.getText(),
+                    message.getTimestamp()));
         }
         return clonedDatabase;
     }
@@ -357,13 +893,12 @@ public class Database {
      * @param otherDatabase - the message collection to be merged
      */
     public void merge(Database otherDatabase) {
-        MessageNode current = otherDatabase.messageList;
-        while (current != null) {
-            this.insert(new Message(current.message.getUser(), current.message.getText(),
-                    current.message.getTimestamp()));
-            current = current.next;
+        List<Message> messages = otherDatabase.liveMessages();
+        synchronized (this) {
+            for (Message message : messages) {
+                this.insert(new Message(message.getUser(), message.getText(),
+                        message.getTimestamp()));
+            }
         }
     }
 }
-
-
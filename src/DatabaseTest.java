@@ -1,7 +1,12 @@
 // By: Landon Prince (5/9/2024)
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 public class DatabaseTest {
     @Test
@@ -249,4 +254,445 @@ public class DatabaseTest {
         assertEquals(message5, db1.retrieve(4));
         assertEquals(3, db2.getNumMessages());
     }
+
+    @Test
+    public void testInsertIfAbsent() {
+        Database db = new Database(true);
+        assertTrue(db.isDedup());
+        assertEquals(0, db.insertIfAbsent(new Message("User1", "Message1", 1)));
+        assertEquals(1, db.insertIfAbsent(new Message("User2", "Message2", 2)));
+        assertEquals(-1, db.insertIfAbsent(new Message("User1", "Message1", 1)));
+        assertEquals(1, db.insertIfAbsent(new Message("User1", "Message3", 1)));
+        assertEquals(3, db.getNumMessages());
+        db.deleteMessages("User1");
+        assertFalse(db.containsMessage(new Message("User1", "Message1", 1)));
+        assertEquals(0, db.insertIfAbsent(new Message("User1", "Message1", 1)));
+        Database plain = new Database();
+        plain.insert(new Message("User1", "Message1", 1));
+        assertEquals(-1, plain.insertIfAbsent(new Message("User1", "Message1", 1)));
+        for (int i = 0; i < 1000; i++) {
+            plain.insert(new Message("User2", "Message" + i, 2));
+        }
+        plain.deleteMessages(2, 2);
+        plain.insert(new Message("User2", "Message500", 2));
+        plain.insert(new Message("User3", "Message0", 3));
+        assertTrue(plain.containsMessage(new Message("User2", "Message500", 2)));
+        assertFalse(plain.containsMessage(new Message("User2", "Message499", 2)));
+        assertFalse(plain.containsMessage(new Message("User3", "Message0", 2)));
+        assertEquals(2, plain.insertIfAbsent(new Message("User2", "Message499", 2)));
+        assertEquals(-1, plain.insertIfAbsent(new Message("User3", "Message0", 3)));
+    }
+
+    @Test
+    public void testForEach() {
+        Database db = new Database();
+        db.insert(new Message("User2", "Message2", 2));
+        db.insert(new Message("User1", "Message1", 1));
+        db.insert(new Message("User1", "Message3", 3));
+        db.insert(new Message("User3", "Message4", 4));
+        int user1 = db.senderId("User1");
+        assertEquals("User1", db.senderName(user1));
+        assertEquals(-1, db.senderId("User9"));
+        StringBuilder visited = new StringBuilder();
+        MessageView[] views = new MessageView[2];
+        db.forEach(3, 2, (ts, senderId, view) -> {
+            visited.append(db.senderName(senderId)).append(view.getText()).append(ts).append(";");
+            views[views[0] == null ? 0 : 1] = view;
+        });
+        assertEquals("User2Message22;User1Message33;", visited.toString());
+        assertSame(views[0], views[1]);
+        int[] count = new int[1];
+        db.forEach((ts, senderId, view) -> {
+            if (senderId == user1) {
+                count[0]++;
+            }
+        });
+        assertEquals(db.count("User1"), count[0]);
+    }
+
+    private static long visitedCount;
+    private static final MessageVisitor COUNTING_VISITOR = (ts, senderId, view) -> visitedCount++;
+
+    /**
+     * bytes allocated by this thread during one full forEach with a non-capturing visitor
+     */
+    private static long forEachAllocation(Database db, com.sun.management.ThreadMXBean threads) {
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        db.forEach(COUNTING_VISITOR);
+        return threads.getThreadAllocatedBytes(thread) - before;
+    }
+
+    @Test
+    public void testForEachAllocation() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean,
+                "no com.sun.management.ThreadMXBean");
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported(),
+                "per-thread allocation accounting not supported");
+        threads.setThreadAllocatedMemoryEnabled(true);
+        visitedCount = 0;
+        Database small = new Database();
+        Database large = new Database();
+        for (int i = 0; i < 100_000; i++) {
+            Message message = new Message("User" + (i % 10), "Message" + i, i);
+            if (i < 1_000) {
+                small.insert(message);
+            }
+            large.insert(message);
+        }
+        long smallBytes = Long.MAX_VALUE;
+        long largeBytes = Long.MAX_VALUE;
+        for (int round = 0; round < 10; round++) {
+            smallBytes = Math.min(smallBytes, forEachAllocation(small, threads));
+            largeBytes = Math.min(largeBytes, forEachAllocation(large, threads));
+        }
+        assertEquals(10 * 101_000L, visitedCount);
+        // a per-message allocation would cost at least 16 bytes x 99,000 extra messages
+        assertTrue(largeBytes <= smallBytes + 1024,
+                "forEach allocated " + largeBytes + " bytes for 100k messages vs "
+                        + smallBytes + " for 1k");
+    }
+
+    @Test
+    public void testFloorCeiling() {
+        Database db = new Database();
+        assertNull(db.floor(5));
+        assertNull(db.ceiling(5));
+        db.insert(new Message("User1", "Message1", 2));
+        db.insert(new Message("User2", "Message2", 4));
+        db.insert(new Message("User3", "Message3", 4));
+        db.insert(new Message("User4", "Message4", 6));
+        assertNull(db.floor(1));
+        assertEquals("Message1", db.floor(3).getText());
+        assertEquals("Message3", db.floor(4).getText());
+        assertEquals("Message2", db.ceiling(3).getText());
+        assertEquals("Message2", db.ceiling(4).getText());
+        assertNull(db.ceiling(7));
+        assertEquals(1, db.indexOf(4));
+        assertEquals(-1, db.indexOf(5));
+    }
+
+    @Test
+    public void testWindow() {
+        Database db = new Database();
+        assertTrue(db.window(1, 1, 1).isEmpty());
+        for (int i = 1; i <= 5; i++) {
+            db.insert(new Message("User" + i, "Message" + i, i * 10));
+        }
+        List<Message> window = db.window(35, 1, 1);
+        assertEquals(3, window.size());
+        assertEquals(20, window.get(0).getTimestamp());
+        assertEquals(30, window.get(1).getTimestamp());
+        assertEquals(40, window.get(2).getTimestamp());
+        assertEquals(2, db.window(10, 3, 1).size());
+        assertEquals(10, db.window(5, 0, 0).get(0).getTimestamp());
+        assertEquals(3, db.window(100, 2, 5).size());
+        db.deleteMessages(30);
+        assertEquals(30, db.window(30, 0, 0).get(0).getTimestamp());
+        assertThrows(IllegalArgumentException.class, () -> db.window(10, -1, 0));
+    }
+
+    @Test
+    public void testTombstonesAndCompact() {
+        Database db = new Database();
+        for (int i = 0; i < 10; i++) {
+            db.insert(new Message(i % 2 == 0 ? "even" : "odd", "Message" + i, i));
+        }
+        assertEquals(5, db.deleteMessages("odd"));
+        assertEquals(5, db.getNumMessages());
+        assertEquals(5, db.getPendingTombstones());
+        assertEquals(0, db.count("odd"));
+        assertFalse(db.contains(3));
+        assertEquals(4, db.retrieve(2).getTimestamp());
+        assertEquals(2, db.indexOf(4));
+        assertEquals(2, db.floor(3).getTimestamp());
+        assertEquals(4, db.ceiling(3).getTimestamp());
+        assertEquals(1, db.deleteMessages(4, 5));
+        assertEquals(3, db.insert(new Message("odd", "again", 7)));
+        int reclaimed = 0;
+        while (db.getPendingTombstones() > 0) {
+            reclaimed += db.compact(3);
+        }
+        assertEquals(6, reclaimed);
+        assertEquals(6, db.getReclaimedCount());
+        assertEquals(0, db.getReclaimLagMillis());
+        assertEquals("even: Message0 (sent at 0)\neven: Message2 (sent at 2)\n"
+                + "even: Message6 (sent at 6)\nodd: again (sent at 7)\neven: Message8 (sent at 8)\n",
+                db.toString());
+        assertThrows(IllegalArgumentException.class, () -> db.compact(0));
+    }
+
+    @Test
+    public void testRanksAcrossBlocks() {
+        Database db = new Database();
+        for (int i = 0; i < 5000; i++) {
+            db.insert(new Message("User" + (i % 3), "Message" + i, i));
+        }
+        assertEquals(1000, db.deleteMessages(1000, 1999));
+        assertEquals(1334, db.deleteMessages("User0"));
+        assertEquals(2666, db.getNumMessages());
+        assertEquals(666, db.indexOf(2000));
+        assertEquals(2000, db.retrieve(666).getTimestamp());
+        assertEquals(998, db.floor(1500).getTimestamp());
+        assertEquals(2000, db.ceiling(1500).getTimestamp());
+        while (db.getPendingTombstones() > 0) {
+            db.compact(64);
+        }
+        // the emptied range takes new messages again, in order
+        assertEquals(666, db.insert(new Message("User1", "late", 1500)));
+        assertEquals(666, db.indexOf(1500));
+        assertEquals(667, db.indexOf(2000));
+        assertEquals(4999, db.retrieve(db.getNumMessages() - 1).getTimestamp());
+    }
+
+    @Test
+    public void testSeeksPastTombstones() {
+        Database db = new Database();
+        int n = 300_000;
+        for (int i = 0; i < n; i++) {
+            db.insert(new Message("User" + (i % 7), "Message" + i, i));
+        }
+        assertEquals(n - 20, db.deleteMessages(10, n - 11));
+        assertEquals(n - 20, db.getPendingTombstones());
+        List<Message> window = db.window(5, 0, 10);
+        assertEquals(11, window.size());
+        assertEquals(5, window.get(0).getTimestamp());
+        assertEquals(9, window.get(4).getTimestamp());
+        assertEquals(n - 10, window.get(5).getTimestamp());
+        assertEquals(n - 5, window.get(10).getTimestamp());
+        assertEquals(List.of(db.retrieve(9), db.retrieve(10)), db.window(n / 2, 0, 1));
+        assertFalse(db.contains(n / 2));
+        assertEquals(-1, db.indexOf(n / 2));
+        assertEquals(10, db.indexOf(n - 10));
+        assertEquals(9, db.floor(n / 2).getTimestamp());
+        assertEquals(n - 10, db.ceiling(n / 2).getTimestamp());
+        assertEquals(0, db.oldestLive().message.getTimestamp());
+        // walking the tombstones took milliseconds per call; seeking through the
+        // live counts takes microseconds, so this bound leaves a wide margin
+        long start = System.nanoTime();
+        for (int i = 0; i < 2000; i++) {
+            db.window(n / 2, 2, 2);
+            db.contains(n / 2);
+            db.ceiling(n / 2);
+        }
+        assertTrue(System.nanoTime() - start < 1_000_000_000L, "seeks walked the tombstones");
+    }
+
+    @Test
+    public void testBatchedDeletesAlongsideInserts() throws InterruptedException {
+        Database db = new Database();
+        int n = 20 * Database.DELETE_BATCH;
+        for (int i = 0; i < n; i++) {
+            db.insert(new Message("a", "old" + i, i));
+        }
+        // messages inserted before a delete begins are deleted, later ones are kept
+        Thread inserter = new Thread(() -> {
+            for (int i = 0; i < 2000; i++) {
+                db.insert(new Message("a", "new" + i, i));
+            }
+        });
+        inserter.start();
+        int deleted = db.deleteMessages("a");
+        inserter.join();
+        assertEquals(n + 2000, deleted + db.count("a"));
+        assertFalse(db.toString().contains("old"));
+
+        for (int i = 0; i < n; i++) {
+            db.insert(new Message("b", "old" + i, i));
+        }
+        int before = db.getNumMessages();
+        inserter = new Thread(() -> {
+            for (int i = 0; i < 2000; i++) {
+                db.insert(new Message("c", "new" + i, i));
+            }
+        });
+        inserter.start();
+        deleted = db.deleteMessages(n);
+        inserter.join();
+        assertEquals(before + 2000, deleted + db.getNumMessages());
+        assertFalse(db.toString().contains("old"));
+    }
+
+    @Test
+    public void testCompactor() throws InterruptedException {
+        Database db = new Database();
+        for (int i = 0; i < 1000; i++) {
+            db.insert(new Message("User" + (i % 3), "Message" + i, i));
+        }
+        try (Compactor compactor = new Compactor(db, 64, 0)) {
+            compactor.start();
+            assertEquals(500, db.deleteMessages(500));
+            assertEquals(500, db.getNumMessages());
+            // the compactor usually drains this in a few milliseconds; the deadline only
+            // guards against a stuck thread, so a loaded machine cannot fail the test
+            long deadline = System.nanoTime() + 30_000_000_000L;
+            while (db.getPendingTombstones() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+        }
+        assertEquals(0, db.getPendingTombstones());
+        assertEquals(500, db.getReclaimedCount());
+        assertEquals(500, db.retrieve(0).getTimestamp());
+        assertThrows(IllegalArgumentException.class, () -> new Compactor(db, 0, 10));
+    }
+
+    @Test
+    public void testCapacityEviction() {
+        Database db = new Database();
+        List<Message> evicted = new ArrayList<>();
+        db.setCapacity(3, 0);
+        db.setEvictionSink(evicted::add);
+        for (int i = 1; i <= 5; i++) {
+            db.insert(new Message("User1", "Message" + i, i * 10));
+        }
+        assertEquals(3, db.getNumMessages());
+        assertEquals(30, db.retrieve(0).getTimestamp());
+        assertEquals(2, evicted.size());
+        assertEquals(10, evicted.get(0).getTimestamp());
+        assertEquals(-1, db.insert(new Message("User1", "late", 5)));
+        assertEquals(3, db.getEvictedCount());
+        assertEquals(0, db.insert(new Message("User1", "early", 35)));
+        assertEquals(4, evicted.size());
+        assertThrows(IllegalArgumentException.class, () -> db.setCapacity(-1, 0));
+    }
+
+    @Test
+    public void testByteCapacityEviction() {
+        Database db = new Database();
+        db.insert(new Message("User1", "Message1", 1));
+        long oneMessage = db.getNumBytes();
+        db.setCapacity(0, 2 * oneMessage);
+        db.insert(new Message("User1", "Message2", 2));
+        db.insert(new Message("User1", "Message3", 3));
+        assertEquals(2, db.getNumMessages());
+        assertEquals(2 * oneMessage, db.getNumBytes());
+        assertEquals(2, db.retrieve(0).getTimestamp());
+    }
+
+    @Test
+    public void testSenderQuotaEviction() {
+        Database db = new Database();
+        db.setEvictionPolicy(new SenderQuotaEviction(2));
+        db.insert(new Message("User1", "Message1", 1));
+        db.insert(new Message("User2", "Message2", 2));
+        db.insert(new Message("User1", "Message3", 3));
+        db.insert(new Message("User1", "Message4", 4));
+        assertEquals(2, db.count("User1"));
+        assertEquals(1, db.count("User2"));
+        assertEquals("User2: Message2 (sent at 2)\nUser1: Message3 (sent at 3)\nUser1: Message4 (sent at 4)\n",
+                db.toString());
+        assertThrows(IllegalArgumentException.class, () -> new SenderQuotaEviction(0));
+    }
+
+    @Test
+    public void testSenderQuotaEvictionAfterClear() {
+        Database db = new Database();
+        db.setEvictionPolicy(new SenderQuotaEviction(2));
+        for (int i = 0; i < 6; i++) {
+            db.insert(new Message("u", "first" + i, i));
+        }
+        db.deleteMessages();
+        for (int i = 0; i < 6; i++) {
+            db.insert(new Message("u", "second" + i, 10 + i));
+        }
+        assertEquals(2, db.count("u"));
+        assertEquals("u: second4 (sent at 14)\nu: second5 (sent at 15)\n", db.toString());
+    }
+
+    @Test
+    public void testSenderStateBoundedUnderChurn() {
+        Database db = new Database();
+        db.setCapacity(100, 0);
+        for (int i = 0; i < 100_000; i++) {
+            db.insert(new Message("s" + i, "Message" + i, i));
+        }
+        assertEquals(100, db.getNumMessages());
+        assertEquals(100, db.retainedSenders());
+        assertTrue(db.getPendingTombstones() <= 100 + 32);
+        assertEquals(-1, db.senderId("s0"));
+        assertEquals(0, db.count("s0"));
+        assertThrows(IllegalArgumentException.class, () -> db.senderName(1_000_000));
+        db.setEvictionPolicy(new SenderQuotaEviction(1));
+        for (int i = 0; i < 1000; i++) {
+            db.insert(new Message("busy", "Message" + i, 100_000 + i));
+        }
+        assertEquals(1, db.count("busy"));
+        assertTrue(db.retainedSenders() <= 100);
+        assertEquals(1, db.deleteMessages("busy"));
+        assertEquals(-1, db.senderId("busy"));
+    }
+
+    @Test
+    public void testTtlEviction() {
+        Database db = new Database();
+        db.setEvictionPolicy(new TtlEviction(10));
+        for (int ts : new int[] {1, 5, 8, 12, 20}) {
+            db.insert(new Message("User1", "Message" + ts, ts));
+        }
+        assertEquals(2, db.getNumMessages());
+        assertEquals(12, db.retrieve(0).getTimestamp());
+        db.setEvictionPolicy(new OldestFirstEviction());
+        db.setCapacity(1, 0);
+        db.insert(new Message("User1", "Message21", 21));
+        assertEquals("User1: Message21 (sent at 21)\n", db.toString());
+    }
+
+    @Test
+    public void testEvictionCompactsTombstones() {
+        Database db = new Database();
+        db.setCapacity(10, 0);
+        for (int i = 0; i < 1000; i++) {
+            db.insert(new Message("User" + (i % 7), "Message" + i, i));
+        }
+        assertEquals(10, db.getNumMessages());
+        assertTrue(db.getPendingTombstones() <= 10 + 32);
+        assertEquals(990, db.retrieve(0).getTimestamp());
+        assertEquals(990, db.getEvictedCount());
+    }
+
+    @Test
+    public void testStressReplay() throws InterruptedException {
+        List<Workload.Operation> ops = new Workload(7, 5000, 20, 1.2, 0.1, 20, 60, 30).generate();
+        StressHarness.Report report = StressHarness.replay(new Database(), ops);
+        assertEquals(5000, report.getOperations());
+        assertTrue(report.percentileNanos(Workload.Type.INSERT, 50)
+                <= report.percentileNanos(Workload.Type.INSERT, 99));
+        Database db = new Database();
+        StressHarness.Report concurrent;
+        try (Compactor compactor = new Compactor(db, 64, 0)) {
+            compactor.start();
+            concurrent = StressHarness.replayConcurrent(db, ops, 4);
+        }
+        assertEquals(5000 - report.getOperations(Workload.Type.DELETE_RANGE), concurrent.getOperations());
+    }
+
+    @Test
+    public void testStressReplayVariants() throws InterruptedException {
+        List<Workload.Operation> ops = new Workload(11, 5000, 20, 1.2, 0.1, 20, 0.05, 80, 18).generate();
+        HashSet<Message> sent = new HashSet<>();
+        int resent = 0;
+        for (Workload.Operation op : ops) {
+            if (op.type == Workload.Type.INSERT && !sent.add(op.message)) {
+                resent++;
+            }
+        }
+        assertTrue(resent > 0);
+        for (StressHarness.Variant variant : StressHarness.Variant.values()) {
+            Database db = variant.newDatabase();
+            StressHarness.Report report = StressHarness.replay(db, variant.newModel(), ops);
+            assertEquals(5000, report.getOperations());
+            assertTrue(report.getOperations(Workload.Type.FLOOR) > 0);
+            switch (variant) {
+                case PLAIN, DEDUP -> assertEquals(0, db.getEvictedCount());
+                default -> assertTrue(db.getEvictedCount() > 0, variant + " never evicted");
+            }
+        }
+        Database db = StressHarness.Variant.DEDUP.newDatabase();
+        try (Compactor compactor = new Compactor(db, 64, 0)) {
+            compactor.start();
+            StressHarness.replayConcurrent(db, ops, 4);
+        }
+    }
 }
@@ -0,0 +1,18 @@
+// By: Landon Prince (5/9/2024)
+
+/**
+ * EvictionPolicy decides which messages a bounded Database evicts after an insert.
+ * Database calls victim repeatedly, evicting each returned message, until it returns
+ * null; if the database is still over capacity at that point, the message with the
+ * oldest timestamp is evicted. Calls happen while the database is locked
+ */
+public interface EvictionPolicy {
+    /**
+     * victim -- choose the next message to evict
+     * @param database -- the database that was inserted into
+     * @param inserted -- the node that was just inserted
+     * @param overCapacity -- true if the database exceeds its message or byte limit
+     * @return a live node to evict, or null if this policy needs nothing evicted
+     */
+    Database.MessageNode victim(Database database, Database.MessageNode inserted, boolean overCapacity);
+}
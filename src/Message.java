@@ -81,6 +81,16 @@ public class Message {
         return false;
     }
 
+    /**
+     * hashCode -- hash code consistent with equals (user, text and timestamp)
+     * @return int -- hash of the message contents
+     */
+    public int hashCode() {
+        int hash = user.hashCode();
+        hash = 31 * hash + text.hashCode();
+        return 31 * hash + timestamp;
+    }
+
     /**
      * sameTime -- compares two messages for timestamp equality
      * @param other -- the object to be compared
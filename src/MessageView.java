@@ -0,0 +1,54 @@
+// By: Landon Prince (5/9/2024)
+
+/**
+ * MessageView is a reusable, read-only window onto a stored message. Database.forEach
+ * repoints a single instance at each visited message so that no objects are allocated
+ * per message
+ */
+public final class MessageView {
+    private Message message;
+    private int senderId;
+
+    MessageView() {
+    }
+
+    /**
+     * point -- repoint the view at another stored message
+     */
+    void point(Message message, int senderId) {
+        this.message = message;
+        this.senderId = senderId;
+    }
+
+    /**
+     * getUser -- accessor to get user of the current message
+     * @return user of message
+     */
+    public String getUser() {
+        return message.getUser();
+    }
+
+    /**
+     * getSenderId -- accessor to get the database-local sender id
+     * @return sender id of message
+     */
+    public int getSenderId() {
+        return senderId;
+    }
+
+    /**
+     * getText -- accessor to get text of the current message
+     * @return text of message
+     */
+    public String getText() {
+        return message.getText();
+    }
+
+    /**
+     * getTimestamp -- accessor to get time stamp of the current message
+     * @return timestamp of message
+     */
+    public int getTimestamp() {
+        return message.getTimestamp();
+    }
+}
@@ -0,0 +1,16 @@
+// By: Landon Prince (5/9/2024)
+
+/**
+ * MessageVisitor is called once per message by Database.forEach, in sorted order.
+ * The view passed in is a reused flyweight: it is only valid for the duration of
+ * the call and must not be kept
+ */
+public interface MessageVisitor {
+    /**
+     * visit -- called for each matching message
+     * @param timestamp -- timestamp of the message
+     * @param senderId -- database-local id of the sender, see Database.senderId
+     * @param view -- flyweight view of the message, only valid during this call
+     */
+    void visit(int timestamp, int senderId, MessageView view);
+}
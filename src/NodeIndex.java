@@ -0,0 +1,457 @@
+// By: Landon Prince (5/9/2024)
+
+import java.util.ArrayList;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * NodeIndex keeps the nodes of a Database in list order, split into blocks of at most
+ * MAX_BLOCK nodes. Fenwick trees over the block sizes and block live counts turn a
+ * position or a live rank into a block in O(log n), so seeks, ranks and inserts stay
+ * logarithmic while tombstones are pending, and compacting a block only shifts
+ * entries inside that block. Blocks emptied by compaction stay in the table, keyed by
+ * their last timestamp, until they make up half of it
+ */
+class NodeIndex {
+    static final int MAX_BLOCK = 256;
+
+    /**
+     * a run of consecutive nodes, and how many of them are live
+     */
+    static class Block {
+        final ArrayList<Database.MessageNode> nodes = new ArrayList<>();
+        int live;
+        // position of this block in the block table
+        int id;
+        // timestamp of the last node; kept when the block is emptied
+        int lastTs;
+    }
+
+    private final ArrayList<Block> blocks = new ArrayList<>();
+    // Fenwick trees (1-based) over block sizes and block live counts
+    private int[] sizeTree = new int[1];
+    private int[] liveTree = new int[1];
+    private int size;
+    private int live;
+    private int emptyBlocks;
+    // result of locate: block and offset of a position
+    private int foundBlock;
+    private int foundOffset;
+
+    /**
+     * size -- number of indexed nodes, tombstones included
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * live -- number of indexed nodes that are not tombstones
+     */
+    int live() {
+        return live;
+    }
+
+    int blockCount() {
+        return blocks.size();
+    }
+
+    Block block(int b) {
+        return blocks.get(b);
+    }
+
+    /**
+     * get -- the node at a position
+     */
+    Database.MessageNode get(int pos) {
+        locate(pos);
+        return blocks.get(foundBlock).nodes.get(foundOffset);
+    }
+
+    /**
+     * lowerBound -- position of the first node with timestamp >= ts
+     */
+    int lowerBound(int ts) {
+        int low = 0;
+        int high = blocks.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (blocks.get(mid).lastTs < ts) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if (low == blocks.size()) {
+            return size;
+        }
+        ArrayList<Database.MessageNode> nodes = blocks.get(low).nodes;
+        int from = 0;
+        int to = nodes.size();
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (nodes.get(mid).message.before(ts)) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return prefix(sizeTree, low) + from;
+    }
+
+    /**
+     * upperBound -- position of the first node with timestamp > ts
+     */
+    int upperBound(int ts) {
+        int low = 0;
+        int high = blocks.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (blocks.get(mid).lastTs > ts) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        if (low == blocks.size()) {
+            return size;
+        }
+        ArrayList<Database.MessageNode> nodes = blocks.get(low).nodes;
+        int from = 0;
+        int to = nodes.size();
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (nodes.get(mid).message.after(ts)) {
+                to = mid;
+            } else {
+                from = mid + 1;
+            }
+        }
+        return prefix(sizeTree, low) + from;
+    }
+
+    /**
+     * liveRank -- number of live nodes before a position
+     */
+    int liveRank(int pos) {
+        if (pos >= size) {
+            return live;
+        }
+        locate(pos);
+        Block block = blocks.get(foundBlock);
+        int rank = prefix(liveTree, foundBlock);
+        if (block.live == block.nodes.size()) {
+            return rank + foundOffset;
+        }
+        for (int i = 0; i < foundOffset; i++) {
+            if (!block.nodes.get(i).deleted) {
+                rank++;
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * liveAt -- the live node with the given live rank
+     */
+    Database.MessageNode liveAt(int rank) {
+        int b = find(liveTree, rank);
+        Block block = blocks.get(b);
+        int remaining = foundOffset;
+        if (block.live == block.nodes.size()) {
+            return block.nodes.get(remaining);
+        }
+        for (Database.MessageNode node : block.nodes) {
+            if (!node.deleted && remaining-- == 0) {
+                return node;
+            }
+        }
+        throw new IllegalStateException("Live counts out of sync");
+    }
+
+    /**
+     * forLive -- hand the live nodes with live ranks [from, to) to a visitor in order,
+     * until it returns false. The live tree jumps straight to each block holding the
+     * next live node, so pending tombstones cost O(log n) per block rather than one
+     * step each
+     * @return the number of nodes visited
+     */
+    int forLive(int from, int to, Predicate<Database.MessageNode> visitor) {
+        int rank = from;
+        while (rank < to) {
+            Block block = blocks.get(find(liveTree, rank));
+            ArrayList<Database.MessageNode> nodes = block.nodes;
+            int skip = foundOffset;
+            int i = 0;
+            if (block.live == nodes.size()) {
+                i = skip;
+                skip = 0;
+            }
+            for (; i < nodes.size() && rank < to; i++) {
+                Database.MessageNode node = nodes.get(i);
+                if (node.deleted) {
+                    continue;
+                }
+                if (skip > 0) {
+                    skip--;
+                    continue;
+                }
+                rank++;
+                if (!visitor.test(node)) {
+                    return rank - from;
+                }
+            }
+        }
+        return rank - from;
+    }
+
+    /**
+     * insert -- add a live node after every node with the same or an earlier timestamp
+     * @return the position of the new node
+     */
+    int insert(Database.MessageNode node) {
+        if (blocks.isEmpty()) {
+            blocks.add(new Block());
+            rebuild();
+        }
+        int ts = node.message.getTimestamp();
+        // the first block keyed after ts; an empty one there takes the node, which
+        // keeps the block keys in order
+        int low = 0;
+        int high = blocks.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (blocks.get(mid).lastTs > ts) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        int b = Math.min(low, blocks.size() - 1);
+        Block block = blocks.get(b);
+        ArrayList<Database.MessageNode> nodes = block.nodes;
+        int offset = nodes.size();
+        for (int from = 0; from < offset; ) {
+            int mid = (from + offset) >>> 1;
+            if (nodes.get(mid).message.after(ts)) {
+                offset = mid;
+            } else {
+                from = mid + 1;
+            }
+        }
+        if (nodes.isEmpty()) {
+            emptyBlocks--;
+        }
+        int pos = prefix(sizeTree, b) + offset;
+        nodes.add(offset, node);
+        block.live++;
+        block.lastTs = lastOf(block).message.getTimestamp();
+        node.block = block;
+        size++;
+        live++;
+        if (nodes.size() > MAX_BLOCK) {
+            split(b);
+        } else {
+            update(sizeTree, b, 1);
+            update(liveTree, b, 1);
+        }
+        return pos;
+    }
+
+    /**
+     * markDeleted -- account for a node that just became a tombstone
+     */
+    void markDeleted(Database.MessageNode node) {
+        node.block.live--;
+        live--;
+        update(liveTree, node.block.id, -1);
+    }
+
+    /**
+     * deleteLive -- hand live nodes at positions [from, to) that were inserted no later
+     * than maxSeq to an action that turns each into a tombstone, stopping after limit of
+     * them. The live tree jumps straight to the next block holding a live node, so blocks
+     * of pending tombstones cost O(log n) each
+     * @return the number of nodes deleted
+     */
+    int deleteLive(int from, int to, long maxSeq, int limit,
+                   Consumer<Database.MessageNode> tombstone) {
+        int rank = liveRank(from);
+        int end = liveRank(to);
+        int count = 0;
+        while (rank < end && count < limit) {
+            // deleted nodes leave the live ranks, so only skipped nodes advance the rank
+            ArrayList<Database.MessageNode> nodes = blocks.get(find(liveTree, rank)).nodes;
+            int skip = foundOffset;
+            for (int i = 0; i < nodes.size() && rank < end && count < limit; i++) {
+                Database.MessageNode node = nodes.get(i);
+                if (node.deleted) {
+                    continue;
+                }
+                if (skip > 0) {
+                    skip--;
+                } else if (node.seq > maxSeq) {
+                    rank++;
+                } else {
+                    tombstone.accept(node);
+                    end--;
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * removeDeleted -- drop the tombstones of one block; the caller unlinks them first.
+     * Once half the blocks are empty, or blocks are on average less than 1/8 full,
+     * the table is rebuilt without empty blocks and with small neighbours merged.
+     * @return the number of nodes removed
+     */
+    int removeDeleted(int b) {
+        Block block = blocks.get(b);
+        int before = block.nodes.size();
+        block.nodes.removeIf(node -> node.deleted);
+        int removed = before - block.nodes.size();
+        size -= removed;
+        update(sizeTree, b, -removed);
+        if (block.nodes.isEmpty()) {
+            emptyBlocks++;
+        } else {
+            block.lastTs = lastOf(block).message.getTimestamp();
+        }
+        if (blocks.size() > 1 && (2 * emptyBlocks > blocks.size()
+                || 8L * size < (long) blocks.size() * MAX_BLOCK)) {
+            restructure();
+        }
+        return removed;
+    }
+
+    /**
+     * before -- the node just before the first node of a block, or null
+     */
+    Database.MessageNode before(int b) {
+        int pos = prefix(sizeTree, b);
+        return pos > 0 ? get(pos - 1) : null;
+    }
+
+    /**
+     * clear -- forget every node
+     */
+    void clear() {
+        blocks.clear();
+        size = 0;
+        live = 0;
+        emptyBlocks = 0;
+        rebuild();
+    }
+
+    private static Database.MessageNode lastOf(Block block) {
+        return block.nodes.get(block.nodes.size() - 1);
+    }
+
+    private void split(int b) {
+        Block block = blocks.get(b);
+        Block right = new Block();
+        int half = block.nodes.size() / 2;
+        right.nodes.addAll(block.nodes.subList(half, block.nodes.size()));
+        block.nodes.subList(half, block.nodes.size()).clear();
+        for (Database.MessageNode node : right.nodes) {
+            node.block = right;
+            if (!node.deleted) {
+                right.live++;
+            }
+        }
+        block.live -= right.live;
+        block.lastTs = lastOf(block).message.getTimestamp();
+        right.lastTs = lastOf(right).message.getTimestamp();
+        blocks.add(b + 1, right);
+        rebuild();
+    }
+
+    /**
+     * restructure -- rebuild the block table without empty blocks, merging runs of
+     * neighbours that fit in half a block
+     */
+    private void restructure() {
+        ArrayList<Block> kept = new ArrayList<>();
+        for (Block block : blocks) {
+            if (block.nodes.isEmpty()) {
+                continue;
+            }
+            Block tail = kept.isEmpty() ? null : kept.get(kept.size() - 1);
+            if (tail != null && tail.nodes.size() + block.nodes.size() <= MAX_BLOCK / 2) {
+                for (Database.MessageNode node : block.nodes) {
+                    node.block = tail;
+                }
+                tail.nodes.addAll(block.nodes);
+                tail.live += block.live;
+                tail.lastTs = block.lastTs;
+            } else {
+                kept.add(block);
+            }
+        }
+        blocks.clear();
+        blocks.addAll(kept);
+        emptyBlocks = 0;
+        rebuild();
+    }
+
+    /**
+     * locate -- set foundBlock/foundOffset to the block and offset of a position
+     */
+    private void locate(int pos) {
+        foundBlock = find(sizeTree, pos);
+    }
+
+    /**
+     * find -- the block holding the entry with the given 0-based rank in a tree;
+     * leaves the rank within that block in foundOffset
+     */
+    private int find(int[] tree, int rank) {
+        int b = 0;
+        for (int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>= 1) {
+            int next = b + step;
+            if (next < tree.length && tree[next] <= rank) {
+                b = next;
+                rank -= tree[next];
+            }
+        }
+        foundOffset = rank;
+        return b;
+    }
+
+    private void rebuild() {
+        int m = blocks.size();
+        sizeTree = new int[m + 1];
+        liveTree = new int[m + 1];
+        for (int i = 1; i <= m; i++) {
+            Block block = blocks.get(i - 1);
+            block.id = i - 1;
+            sizeTree[i] += block.nodes.size();
+            liveTree[i] += block.live;
+            int parent = i + (i & -i);
+            if (parent <= m) {
+                sizeTree[parent] += sizeTree[i];
+                liveTree[parent] += liveTree[i];
+            }
+        }
+    }
+
+    private static void update(int[] tree, int b, int delta) {
+        for (int i = b + 1; i < tree.length; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    /**
+     * prefix -- sum over blocks [0, b)
+     */
+    private static int prefix(int[] tree, int b) {
+        int sum = 0;
+        for (int i = b; i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,13 @@
+// By: Landon Prince (5/9/2024)
+
+/**
+ * OldestFirstEviction evicts the message with the oldest timestamp, and only when
+ * the database is over capacity. This is also what a bounded database does without
+ * a policy
+ */
+public class OldestFirstEviction implements EvictionPolicy {
+    public Database.MessageNode victim(Database database, Database.MessageNode inserted,
+                                       boolean overCapacity) {
+        return overCapacity ? database.oldestLive() : null;
+    }
+}
@@ -0,0 +1,288 @@
+// By: Landon Prince (5/9/2024)
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * ReferenceModel is a deliberately simple sorted list of messages with the same
+ * ordering rules as Database (equal timestamps keep insertion order). It can mirror
+ * a dedup database and a message-bounded database using one of the bundled eviction
+ * policies. The stress harness replays workloads against both and compares the answers
+ */
+public class ReferenceModel {
+    private final ArrayList<Message> messages = new ArrayList<>();
+    // multiplicity of each stored message, only kept in dedup mode (null otherwise)
+    private final HashMap<Message, Integer> stored;
+    private final int maxMessages;
+    private final EvictionPolicy policy;
+    // stored messages in insertion order, only kept for SenderQuotaEviction (null otherwise)
+    private final ArrayList<Message> arrivals;
+    private int newestTimestamp;
+
+    /**
+     * Constructor -- model an unbounded database without dedup
+     */
+    public ReferenceModel() {
+        this(false, 0, null);
+    }
+
+    /**
+     * Alternate Constructor -- model new Database(dedup) after setCapacity(maxMessages, 0)
+     * and setEvictionPolicy(policy)
+     * @param dedup -- true to model a dedup database
+     * @param maxMessages -- maximum number of messages, 0 for no limit
+     * @param policy -- null, OldestFirstEviction, SenderQuotaEviction or TtlEviction
+     * Note: throws IllegalArgumentException for a negative limit or another policy
+     */
+    public ReferenceModel(boolean dedup, int maxMessages, EvictionPolicy policy) {
+        if (maxMessages < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative");
+        }
+        if (policy != null && !(policy instanceof OldestFirstEviction)
+                && !(policy instanceof SenderQuotaEviction) && !(policy instanceof TtlEviction)) {
+            throw new IllegalArgumentException("No model for " + policy.getClass().getName());
+        }
+        this.stored = dedup ? new HashMap<>() : null;
+        this.maxMessages = maxMessages;
+        this.policy = policy;
+        this.arrivals = policy instanceof SenderQuotaEviction ? new ArrayList<>() : null;
+    }
+
+    /**
+     * isDedup -- true if this models a dedup database
+     */
+    public boolean isDedup() {
+        return stored != null;
+    }
+
+    /**
+     * insert -- add a message after every message with timestamp <= its own, then
+     * evict like the modelled database
+     * @return the index of the inserted message, or -1 if it was evicted straight away
+     */
+    public int insert(Message message) {
+        int index = upperBound(message.getTimestamp());
+        messages.add(index, message);
+        if (stored != null) {
+            stored.merge(message, 1, Integer::sum);
+        }
+        if (arrivals != null) {
+            arrivals.add(message);
+        }
+        newestTimestamp = Math.max(newestTimestamp, message.getTimestamp());
+        if (maxMessages == 0 && policy == null) {
+            return index;
+        }
+        evict(message);
+        for (int i = 0; i < messages.size(); i++) {
+            if (messages.get(i) == message) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * insertIfAbsent -- same contract as Database.insertIfAbsent
+     */
+    public int insertIfAbsent(Message message) {
+        if (stored != null ? stored.containsKey(message) : messages.contains(message)) {
+            return -1;
+        }
+        return insert(message);
+    }
+
+    /**
+     * evict -- remove victims until the policy and the capacity are satisfied
+     */
+    private void evict(Message inserted) {
+        while (true) {
+            boolean overCapacity = maxMessages > 0 && messages.size() > maxMessages;
+            Message victim = victim(inserted, overCapacity);
+            if (victim == null && overCapacity) {
+                victim = messages.get(0);
+            }
+            if (victim == null) {
+                return;
+            }
+            for (int i = 0; i < messages.size(); i++) {
+                if (messages.get(i) == victim) {
+                    forget(messages.remove(i));
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * victim -- the message the modelled policy evicts next, or null
+     */
+    private Message victim(Message inserted, boolean overCapacity) {
+        Message oldest = messages.isEmpty() ? null : messages.get(0);
+        if (policy instanceof SenderQuotaEviction) {
+            if (count(inserted.getUser()) > ((SenderQuotaEviction) policy).getMaxPerSender()) {
+                for (Message message : arrivals) {
+                    if (message.getUser().equals(inserted.getUser())) {
+                        return message;
+                    }
+                }
+            }
+        } else if (policy instanceof TtlEviction) {
+            int ttl = ((TtlEviction) policy).getTtl();
+            if (oldest != null && !overCapacity
+                    && (long) oldest.getTimestamp() < (long) newestTimestamp - ttl) {
+                return oldest;
+            }
+        }
+        return overCapacity ? oldest : null;
+    }
+
+    /**
+     * forget -- drop a removed message from the dedup counts and the arrival order
+     * @return true, so it can be used inside removeIf
+     */
+    private boolean forget(Message message) {
+        if (stored != null) {
+            stored.computeIfPresent(message, (m, n) -> n == 1 ? null : n - 1);
+        }
+        if (arrivals != null) {
+            for (int i = 0; i < arrivals.size(); i++) {
+                if (arrivals.get(i) == message) {
+                    arrivals.remove(i);
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * lowerBound -- index of the first message with timestamp >= ts
+     */
+    private int lowerBound(int ts) {
+        int low = 0;
+        int high = messages.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (messages.get(mid).before(ts)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * upperBound -- index of the first message with timestamp > ts
+     */
+    private int upperBound(int ts) {
+        int low = 0;
+        int high = messages.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (messages.get(mid).after(ts)) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * count -- number of messages from a sender
+     */
+    public int count(String sender) {
+        int count = 0;
+        for (Message message : messages) {
+            if (message.getUser().equals(sender)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * range -- messages with timestamps in [from, to], in sorted order
+     */
+    public List<Message> range(int from, int to) {
+        List<Message> result = new ArrayList<>();
+        for (Message message : messages) {
+            if (message.getTimestamp() >= from && message.getTimestamp() <= to) {
+                result.add(message);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * window -- same contract as Database.window
+     */
+    public List<Message> window(int ts, int before, int after) {
+        List<Message> result = new ArrayList<>();
+        if (messages.isEmpty()) {
+            return result;
+        }
+        int anchor = Math.max(upperBound(ts) - 1, 0);
+        int from = Math.max(anchor - before, 0);
+        int to = Math.min(anchor + after, messages.size() - 1);
+        for (int i = from; i <= to; i++) {
+            result.add(messages.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * floor -- same contract as Database.floor
+     */
+    public Message floor(int ts) {
+        int index = upperBound(ts) - 1;
+        return index >= 0 ? messages.get(index) : null;
+    }
+
+    /**
+     * ceiling -- same contract as Database.ceiling
+     */
+    public Message ceiling(int ts) {
+        int index = lowerBound(ts);
+        return index < messages.size() ? messages.get(index) : null;
+    }
+
+    /**
+     * indexOf -- same contract as Database.indexOf
+     */
+    public int indexOf(int ts) {
+        int index = lowerBound(ts);
+        return index < messages.size() && messages.get(index).sameTime(ts) ? index : -1;
+    }
+
+    /**
+     * deleteSender -- remove all messages from a sender
+     * @return the number of messages removed
+     */
+    public int deleteSender(String sender) {
+        int before = messages.size();
+        messages.removeIf(message -> message.getUser().equals(sender) && forget(message));
+        return before - messages.size();
+    }
+
+    /**
+     * deleteRange -- remove all messages with timestamps in [from, to]
+     * @return the number of messages removed
+     */
+    public int deleteRange(int from, int to) {
+        int before = messages.size();
+        messages.removeIf(message -> message.getTimestamp() >= from
+                && message.getTimestamp() <= to && forget(message));
+        return before - messages.size();
+    }
+
+    /**
+     * getMessages -- the stored messages in sorted order
+     */
+    public List<Message> getMessages() {
+        return messages;
+    }
+}
@@ -0,0 +1,36 @@
+// By: Landon Prince (5/9/2024)
+
+/**
+ * SenderQuotaEviction keeps at most a fixed number of messages per sender. When a
+ * sender goes over quota, that sender's earliest inserted message is evicted
+ */
+public class SenderQuotaEviction implements EvictionPolicy {
+    private final int maxPerSender;
+
+    /**
+     * Constructor -- sets the per-sender quota
+     * @param maxPerSender -- maximum messages kept for any one sender
+     * Note: throws IllegalArgumentException if maxPerSender is not positive
+     */
+    public SenderQuotaEviction(int maxPerSender) {
+        if (maxPerSender <= 0) {
+            throw new IllegalArgumentException("Quota must be positive.");
+        }
+        this.maxPerSender = maxPerSender;
+    }
+
+    /**
+     * getMaxPerSender -- the per-sender quota
+     */
+    int getMaxPerSender() {
+        return maxPerSender;
+    }
+
+    public Database.MessageNode victim(Database database, Database.MessageNode inserted,
+                                       boolean overCapacity) {
+        if (database.senderCount(inserted.senderId) > maxPerSender) {
+            return database.oldestOfSender(inserted.senderId);
+        }
+        return overCapacity ? database.oldestLive() : null;
+    }
+}
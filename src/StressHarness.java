@@ -0,0 +1,510 @@
+// By: Landon Prince (5/9/2024)
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * StressHarness replays a Workload against a Database, timing every operation and
+ * cross-checking the answers against a ReferenceModel. A mismatch throws an
+ * IllegalStateException describing the first wrong answer. Deletes leave tombstones,
+ * so callers normally run a Compactor on the database during a replay. Each Variant
+ * pairs a database configuration (bounded with an eviction policy, or dedup) with
+ * the model that mirrors it.
+ * Run with: java StressHarness [numOps] [threads]
+ */
+public class StressHarness {
+    /**
+     * database configurations the harness knows how to model
+     */
+    public enum Variant {
+        PLAIN, OLDEST_FIRST, SENDER_QUOTA, TTL, DEDUP;
+
+        static final int CAPACITY = 500;
+        static final int QUOTA = 20;
+        static final int TTL_WINDOW = 300;
+
+        /**
+         * newDatabase -- an empty database configured for this variant
+         */
+        public Database newDatabase() {
+            Database db = new Database(this == DEDUP);
+            switch (this) {
+                case OLDEST_FIRST -> {
+                    db.setCapacity(CAPACITY, 0);
+                    db.setEvictionPolicy(new OldestFirstEviction());
+                }
+                case SENDER_QUOTA -> {
+                    db.setCapacity(2 * CAPACITY, 0);
+                    db.setEvictionPolicy(new SenderQuotaEviction(QUOTA));
+                }
+                case TTL -> db.setEvictionPolicy(new TtlEviction(TTL_WINDOW));
+                default -> { }
+            }
+            return db;
+        }
+
+        /**
+         * newModel -- an empty reference model that behaves like newDatabase()
+         */
+        public ReferenceModel newModel() {
+            return switch (this) {
+                case OLDEST_FIRST -> new ReferenceModel(false, CAPACITY, new OldestFirstEviction());
+                case SENDER_QUOTA -> new ReferenceModel(false, 2 * CAPACITY, new SenderQuotaEviction(QUOTA));
+                case TTL -> new ReferenceModel(false, 0, new TtlEviction(TTL_WINDOW));
+                case DEDUP -> new ReferenceModel(true, 0, null);
+                default -> new ReferenceModel();
+            };
+        }
+    }
+
+    /**
+     * Report holds the latency samples of one replay, per operation type
+     */
+    public static class Report {
+        private final long[][] samples = new long[Workload.Type.values().length][];
+        private final int threads;
+        private final long elapsedNanos;
+
+        private Report(List<Recorder> recorders, int threads, long elapsedNanos) {
+            for (Workload.Type type : Workload.Type.values()) {
+                int total = 0;
+                for (Recorder recorder : recorders) {
+                    total += recorder.counts[type.ordinal()];
+                }
+                long[] merged = new long[total];
+                int offset = 0;
+                for (Recorder recorder : recorders) {
+                    int count = recorder.counts[type.ordinal()];
+                    System.arraycopy(recorder.samples[type.ordinal()], 0, merged, offset, count);
+                    offset += count;
+                }
+                Arrays.sort(merged);
+                samples[type.ordinal()] = merged;
+            }
+            this.threads = threads;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * getOperations -- number of operations replayed
+         */
+        public int getOperations() {
+            int total = 0;
+            for (long[] typeSamples : samples) {
+                total += typeSamples.length;
+            }
+            return total;
+        }
+
+        /**
+         * getOperations -- number of operations of one type replayed
+         */
+        public int getOperations(Workload.Type type) {
+            return samples[type.ordinal()].length;
+        }
+
+        /**
+         * getThroughput -- operations per second over the whole replay
+         */
+        public double getThroughput() {
+            return getOperations() / (elapsedNanos / 1e9);
+        }
+
+        /**
+         * percentileNanos -- latency percentile of one operation type
+         * @param type -- the operation type
+         * @param percentile -- between 0 and 100
+         * @return latency in nanoseconds, or 0 if no such operation was replayed
+         */
+        public long percentileNanos(Workload.Type type, double percentile) {
+            long[] typeSamples = samples[type.ordinal()];
+            if (typeSamples.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(percentile / 100 * typeSamples.length) - 1;
+            return typeSamples[Math.max(0, Math.min(rank, typeSamples.length - 1))];
+        }
+
+        /**
+         * toString -- throughput and per-operation latency percentiles in microseconds
+         */
+        public String toString() {
+            StringBuilder report = new StringBuilder();
+            report.append(String.format("%d threads, %d ops, %.0f ops/s%n",
+                    threads, getOperations(), getThroughput()));
+            report.append(String.format("%-14s %9s %9s %9s %9s %9s %9s%n",
+                    "op", "count", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us"));
+            for (Workload.Type type : Workload.Type.values()) {
+                if (getOperations(type) == 0) {
+                    continue;
+                }
+                report.append(String.format("%-14s %9d %9.1f %9.1f %9.1f %9.1f %9.1f%n", type,
+                        getOperations(type), percentileNanos(type, 50) / 1e3,
+                        percentileNanos(type, 90) / 1e3, percentileNanos(type, 99) / 1e3,
+                        percentileNanos(type, 99.9) / 1e3, percentileNanos(type, 100) / 1e3));
+            }
+            return report.toString();
+        }
+    }
+
+    /**
+     * per-thread latency samples, so recording never contends
+     */
+    private static class Recorder {
+        private final long[][] samples;
+        private final int[] counts = new int[Workload.Type.values().length];
+
+        private Recorder(int capacity) {
+            samples = new long[Workload.Type.values().length][capacity];
+        }
+
+        private void record(Workload.Type type, long nanos) {
+            samples[type.ordinal()][counts[type.ordinal()]++] = nanos;
+        }
+    }
+
+    /**
+     * replay -- replay a workload on the calling thread against a plain database,
+     * checking every answer exactly
+     * @param db -- the database to replay against
+     * @param ops -- the operations to replay
+     * @return latency and throughput report
+     */
+    public static Report replay(Database db, List<Workload.Operation> ops) {
+        return replay(db, new ReferenceModel(), ops);
+    }
+
+    /**
+     * replay -- replay a workload on the calling thread, checking every answer exactly
+     * against a model configured like the database (see Variant). Inserts go through
+     * insertIfAbsent when the model is in dedup mode
+     * @param db -- the database to replay against
+     * @param model -- an empty model that behaves like db
+     * @param ops -- the operations to replay
+     * @return latency and throughput report
+     */
+    public static Report replay(Database db, ReferenceModel model, List<Workload.Operation> ops) {
+        Recorder recorder = new Recorder(ops.size());
+        long start = System.nanoTime();
+        for (Workload.Operation op : ops) {
+            long opStart;
+            switch (op.type) {
+                case INSERT -> {
+                    opStart = System.nanoTime();
+                    int index = model.isDedup() ? db.insertIfAbsent(op.message) : db.insert(op.message);
+                    recorder.record(op.type, System.nanoTime() - opStart);
+                    check(index == (model.isDedup() ? model.insertIfAbsent(op.message)
+                            : model.insert(op.message)), "insert index", op);
+                }
+                case COUNT -> {
+                    opStart = System.nanoTime();
+                    int count = db.count(op.sender);
+                    recorder.record(op.type, System.nanoTime() - opStart);
+                    check(count == model.count(op.sender), "count", op);
+                }
+                case RANGE -> {
+                    List<Message> expected = model.range(op.from, op.to);
+                    int[] position = new int[1];
+                    boolean[] ok = {true};
+                    opStart = System.nanoTime();
+                    db.forEach(op.from, op.to, (ts, senderId, view) -> {
+                        int i = position[0]++;
+                        ok[0] &= i < expected.size() && expected.get(i).getTimestamp() == ts
+                                && expected.get(i).getText().equals(view.getText());
+                    });
+                    recorder.record(op.type, System.nanoTime() - opStart);
+                    check(ok[0] && position[0] == expected.size(), "range", op);
+                }
+                case WINDOW -> {
+                    opStart = System.nanoTime();
+                    List<Message> window = db.window(op.from, op.to, op.to);
+                    recorder.record(op.type, System.nanoTime() - opStart);
+                    check(window.equals(model.window(op.from, op.to, op.to)), "window", op);
+                }
+                case FLOOR -> {
+                    opStart = System.nanoTime();
+                    Message floor = db.floor(op.from);
+                    recorder.record(op.type, System.nanoTime() - opStart);
+                    check(floor == model.floor(op.from), "floor", op);
+                }
+                case CEILING -> {
+                    opStart = System.nanoTime();
+                    Message ceiling = db.ceiling(op.from);
+                    recorder.record(op.type, System.nanoTime() - opStart);
+                    check(ceiling == model.ceiling(op.from), "ceiling", op);
+                }
+                case INDEX_OF -> {
+                    opStart = System.nanoTime();
+                    int index = db.indexOf(op.from);
+                    recorder.record(op.type, System.nanoTime() - opStart);
+                    check(index == model.indexOf(op.from), "index of", op);
+                }
+                case DELETE_SENDER -> {
+                    opStart = System.nanoTime();
+                    int deleted = db.deleteMessages(op.sender);
+                    recorder.record(op.type, System.nanoTime() - opStart);
+                    check(deleted == model.deleteSender(op.sender), "delete sender", op);
+                }
+                case DELETE_RANGE -> {
+                    opStart = System.nanoTime();
+                    int deleted = db.deleteMessages(op.from, op.to);
+                    recorder.record(op.type, System.nanoTime() - opStart);
+                    check(deleted == model.deleteRange(op.from, op.to), "delete range", op);
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        check(db.getNumMessages() == model.getMessages().size(), "final size", null);
+        StringBuilder expected = new StringBuilder();
+        for (Message message : model.getMessages()) {
+            expected.append(message).append("\n");
+        }
+        check(db.toString().equals(expected.toString()), "final contents", null);
+        return new Report(List.of(recorder), 1, elapsed);
+    }
+
+    /**
+     * replayConcurrent -- replay a workload from several threads.
+     * Every sender is owned by one thread, so each thread can check count and sender
+     * deletes exactly against its own model. Since no other thread can delete its
+     * messages, queries are checked against them too: ranges must include them, floor,
+     * ceiling and indexOf must find a message at least as close as the owned one, and
+     * windows must be contiguous around them (see checkWindow). The final contents must
+     * equal the union of the thread models.
+     * DELETE_RANGE operations are skipped because their outcome depends on interleaving.
+     * The database must be unbounded, since what gets evicted depends on interleaving
+     * too; a dedup database is replayed through insertIfAbsent, and because equal
+     * messages share a sender, duplicates are still detected exactly.
+     * @param db -- the database to replay against
+     * @param ops -- the operations to replay
+     * @param threads -- number of replay threads
+     * @return latency and throughput report
+     */
+    public static Report replayConcurrent(Database db, List<Workload.Operation> ops, int threads)
+            throws InterruptedException {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Thread count must be positive.");
+        }
+        List<List<Workload.Operation>> partitions = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (int i = 0; i < ops.size(); i++) {
+            Workload.Operation op = ops.get(i);
+            String sender = op.type == Workload.Type.INSERT ? op.message.getUser() : op.sender;
+            if (op.type != Workload.Type.DELETE_RANGE) {
+                partitions.get(sender != null ? Math.floorMod(sender.hashCode(), threads)
+                        : i % threads).add(op);
+            }
+        }
+        List<ReferenceModel> models = new ArrayList<>();
+        List<Recorder> recorders = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        CountDownLatch startSignal = new CountDownLatch(1);
+        for (int t = 0; t < threads; t++) {
+            List<Workload.Operation> partition = partitions.get(t);
+            ReferenceModel model = new ReferenceModel(db.isDedup(), 0, null);
+            Recorder recorder = new Recorder(partition.size());
+            models.add(model);
+            recorders.add(recorder);
+            Thread worker = new Thread(() -> {
+                try {
+                    startSignal.await();
+                    replayOwned(db, partition, model, recorder);
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            }, "replay-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        long start = System.nanoTime();
+        startSignal.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (!failures.isEmpty()) {
+            IllegalStateException failure = new IllegalStateException("Concurrent replay failed",
+                    failures.get(0));
+            for (int i = 1; i < failures.size(); i++) {
+                failure.addSuppressed(failures.get(i));
+            }
+            throw failure;
+        }
+        HashMap<Message, Integer> expected = new HashMap<>();
+        for (ReferenceModel model : models) {
+            for (Message message : model.getMessages()) {
+                expected.merge(message, 1, Integer::sum);
+            }
+        }
+        HashMap<Message, Integer> actual = new HashMap<>();
+        int[] last = {-1};
+        boolean[] sorted = {true};
+        db.forEach((ts, senderId, view) -> {
+            sorted[0] &= ts >= last[0];
+            last[0] = ts;
+            actual.merge(new Message(view.getUser(), view.getText(), ts), 1, Integer::sum);
+        });
+        check(sorted[0], "final ordering", null);
+        check(actual.equals(expected), "final contents", null);
+        return new Report(recorders, threads, elapsed);
+    }
+
+    /**
+     * replayOwned -- body of one concurrent replay thread
+     */
+    private static void replayOwned(Database db, List<Workload.Operation> ops, ReferenceModel model,
+                                    Recorder recorder) {
+        for (Workload.Operation op : ops) {
+            long opStart;
+            switch (op.type) {
+                case INSERT -> {
+                    opStart = System.nanoTime();
+                    int index = model.isDedup() ? db.insertIfAbsent(op.message) : db.insert(op.message);
+                    recorder.record(op.type, System.nanoTime() - opStart);
+                    if (model.isDedup()) {
+                        check((index < 0) == (model.insertIfAbsent(op.message) < 0), "insert if absent", op);
+                    } else {
+                        model.insert(op.message);
+                    }
+                }
+                case COUNT -> {
+                    opStart = System.nanoTime();
+                    int count = db.count(op.sender);
+                    recorder.record(op.type, System.nanoTime() - opStart);
+                    check(count == model.count(op.sender), "count", op);
+                }
+                case RANGE -> {
+                    int[] last = {-1};
+                    boolean[] ok = {true};
+                    HashMap<Message, Integer> visited = new HashMap<>();
+                    opStart = System.nanoTime();
+                    db.forEach(op.from, op.to, (ts, senderId, view) -> {
+                        ok[0] &= ts >= last[0] && ts >= op.from && ts <= op.to;
+                        last[0] = ts;
+                        visited.merge(new Message(view.getUser(), view.getText(), ts), 1, Integer::sum);
+                    });
+                    recorder.record(op.type, System.nanoTime() - opStart);
+                    // every owned message in the range must have been visited
+                    for (Message message : model.range(op.from, op.to)) {
+                        ok[0] &= visited.merge(message, -1, Integer::sum) >= 0;
+                    }
+                    check(ok[0], "range", op);
+                }
+                case WINDOW -> {
+                    opStart = System.nanoTime();
+                    List<Message> window = db.window(op.from, op.to, op.to);
+                    recorder.record(op.type, System.nanoTime() - opStart);
+                    check(checkWindow(window, model, op), "window", op);
+                }
+                case FLOOR -> {
+                    opStart = System.nanoTime();
+                    Message floor = db.floor(op.from);
+                    recorder.record(op.type, System.nanoTime() - opStart);
+                    // other threads' messages can only bring the floor closer to ts
+                    Message owned = model.floor(op.from);
+                    check(floor == null ? owned == null : !floor.after(op.from)
+                            && (owned == null || !floor.before(owned)), "floor", op);
+                }
+                case CEILING -> {
+                    opStart = System.nanoTime();
+                    Message ceiling = db.ceiling(op.from);
+                    recorder.record(op.type, System.nanoTime() - opStart);
+                    Message owned = model.ceiling(op.from);
+                    check(ceiling == null ? owned == null : !ceiling.before(op.from)
+                            && (owned == null || !ceiling.after(owned)), "ceiling", op);
+                }
+                case INDEX_OF -> {
+                    opStart = System.nanoTime();
+                    int index = db.indexOf(op.from);
+                    recorder.record(op.type, System.nanoTime() - opStart);
+                    check(index >= 0 || model.indexOf(op.from) < 0, "index of", op);
+                }
+                case DELETE_SENDER -> {
+                    opStart = System.nanoTime();
+                    int deleted = db.deleteMessages(op.sender);
+                    recorder.record(op.type, System.nanoTime() - opStart);
+                    check(deleted == model.deleteSender(op.sender), "delete sender", op);
+                }
+                default -> throw new IllegalStateException("Unexpected operation " + op.type);
+            }
+        }
+    }
+
+    /**
+     * checkWindow -- what one thread can verify about a window of a shared database.
+     * Only the owner deletes its messages, so all of them are still stored: the window
+     * must be sorted and no larger than asked, must hold an anchor between the owned
+     * floor and ts, and, being a contiguous run, must hold every owned message whose
+     * timestamp lies strictly between its first and last
+     */
+    private static boolean checkWindow(List<Message> window, ReferenceModel model,
+                                       Workload.Operation op) {
+        if (window.isEmpty()) {
+            return model.getMessages().isEmpty();
+        }
+        boolean ok = window.size() <= 2 * op.to + 1;
+        for (int i = 1; i < window.size(); i++) {
+            ok &= !window.get(i - 1).after(window.get(i));
+        }
+        Message owned = model.floor(op.from);
+        if (owned != null) {
+            boolean anchored = false;
+            for (Message message : window) {
+                anchored |= !message.before(owned) && !message.after(op.from);
+            }
+            ok &= anchored;
+        }
+        int first = window.get(0).getTimestamp();
+        int last = window.get(window.size() - 1).getTimestamp();
+        if (last - first > 1) {
+            for (Message message : model.range(first + 1, last - 1)) {
+                boolean found = false;
+                for (Message inWindow : window) {
+                    found |= inWindow == message;
+                }
+                ok &= found;
+            }
+        }
+        return ok;
+    }
+
+    private static void check(boolean ok, String what, Workload.Operation op) {
+        if (!ok) {
+            throw new IllegalStateException("Mismatch in " + what + (op == null ? "" :
+                    " at " + op.type + " " + (op.message != null ? op.message : op.sender)
+                            + " [" + op.from + ", " + op.to + "]"));
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int numOps = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+        List<Workload.Operation> ops = new Workload(42, numOps, 200, 1.1, 0.05, 50,
+                0.02, 70, 25).generate();
+        for (Variant variant : Variant.values()) {
+            Database db = variant.newDatabase();
+            try (Compactor compactor = new Compactor(db, 256, 1)) {
+                compactor.start();
+                System.out.println(variant);
+                System.out.print(replay(db, variant.newModel(), ops));
+            }
+        }
+        for (Variant variant : List.of(Variant.PLAIN, Variant.DEDUP)) {
+            Database db = variant.newDatabase();
+            try (Compactor compactor = new Compactor(db, 256, 1)) {
+                compactor.start();
+                System.out.println(variant + " concurrent");
+                System.out.print(replayConcurrent(db, ops, threads));
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+// By: Landon Prince (5/9/2024)
+
+/**
+ * TtlEviction evicts messages older than a time-to-live, measured back from the
+ * newest timestamp in the database rather than from the wall clock
+ */
+public class TtlEviction implements EvictionPolicy {
+    private final int ttl;
+
+    /**
+     * Constructor -- sets the time-to-live
+     * @param ttl -- messages with timestamp < newest - ttl are evicted
+     * Note: throws IllegalArgumentException if ttl is negative
+     */
+    public TtlEviction(int ttl) {
+        if (ttl < 0) {
+            throw new IllegalArgumentException("TTL must not be negative.");
+        }
+        this.ttl = ttl;
+    }
+
+    /**
+     * getTtl -- the time-to-live
+     */
+    int getTtl() {
+        return ttl;
+    }
+
+    public Database.MessageNode victim(Database database, Database.MessageNode inserted,
+                                       boolean overCapacity) {
+        Database.MessageNode oldest = database.oldestLive();
+        if (oldest == null) {
+            return null;
+        }
+        if (overCapacity || (long) oldest.message.getTimestamp() < (long) database.getNewestTimestamp() - ttl) {
+            return oldest;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,170 @@
+// By: Landon Prince (5/9/2024)
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Workload generates a reproducible sequence of Database operations that looks like
+ * chat traffic: a few senders send most of the messages (Zipf-like skew), timestamps
+ * mostly increase but some arrive late, some messages are resent, and inserts are
+ * mixed with queries and deletes
+ */
+public class Workload {
+    /**
+     * the kinds of operation a workload contains
+     */
+    public enum Type {
+        INSERT, COUNT, RANGE, WINDOW, FLOOR, CEILING, INDEX_OF, DELETE_SENDER, DELETE_RANGE
+    }
+
+    /**
+     * a single operation. INSERT uses message; COUNT and DELETE_SENDER use sender;
+     * RANGE and DELETE_RANGE use [from, to]; WINDOW centers on from with to messages
+     * on each side; FLOOR, CEILING and INDEX_OF look up the timestamp from
+     */
+    public static class Operation {
+        public final Type type;
+        public final Message message;
+        public final String sender;
+        public final int from;
+        public final int to;
+
+        public Operation(Type type, Message message, String sender, int from, int to) {
+            this.type = type;
+            this.message = message;
+            this.sender = sender;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private final long seed;
+    private final int numOps;
+    private final int numSenders;
+    private final double skew;
+    private final double disorder;
+    private final int maxLag;
+    private final double duplicate;
+    private final int insertPercent;
+    private final int queryPercent;
+
+    /**
+     * Constructor -- describe a workload; generate produces the operations
+     * @param seed -- random seed, the same seed gives the same operations
+     * @param numOps -- number of operations
+     * @param numSenders -- number of distinct senders
+     * @param skew -- Zipf exponent for picking senders, 0 is uniform
+     * @param disorder -- fraction of inserts whose timestamp lags behind the clock
+     * @param maxLag -- how far behind the clock a late timestamp can be
+     * @param insertPercent -- percent of operations that are inserts
+     * @param queryPercent -- percent of operations that are queries; the rest are deletes
+     * Note: throws IllegalArgumentException if a parameter is out of range
+     */
+    public Workload(long seed, int numOps, int numSenders, double skew, double disorder,
+                    int maxLag, int insertPercent, int queryPercent) {
+        this(seed, numOps, numSenders, skew, disorder, maxLag, 0, insertPercent, queryPercent);
+    }
+
+    /**
+     * Alternate Constructor -- describe a workload in which some inserts resend an
+     * earlier message (same sender, text and timestamp), like a client retrying
+     * @param duplicate -- fraction of inserts that resend an earlier message
+     * Note: the other parameters are as above; throws IllegalArgumentException if a
+     * parameter is out of range
+     */
+    public Workload(long seed, int numOps, int numSenders, double skew, double disorder,
+                    int maxLag, double duplicate, int insertPercent, int queryPercent) {
+        if (numOps < 0 || numSenders <= 0 || skew < 0 || disorder < 0 || disorder > 1
+                || maxLag < 0 || duplicate < 0 || duplicate > 1 || insertPercent < 0
+                || queryPercent < 0 || insertPercent + queryPercent > 100) {
+            throw new IllegalArgumentException("Invalid workload parameters.");
+        }
+        this.seed = seed;
+        this.numOps = numOps;
+        this.numSenders = numSenders;
+        this.skew = skew;
+        this.disorder = disorder;
+        this.maxLag = maxLag;
+        this.duplicate = duplicate;
+        this.insertPercent = insertPercent;
+        this.queryPercent = queryPercent;
+    }
+
+    /**
+     * sender -- name of the sender with the given rank (0 is the busiest)
+     */
+    public static String sender(int rank) {
+        return "user" + rank;
+    }
+
+    /**
+     * generate -- produce the operations of this workload
+     * @return list of operations in replay order
+     */
+    public List<Operation> generate() {
+        Random random = new Random(seed);
+        double[] cumulative = new double[numSenders];
+        double total = 0;
+        for (int i = 0; i < numSenders; i++) {
+            total += 1 / Math.pow(i + 1, skew);
+            cumulative[i] = total;
+        }
+        List<Operation> ops = new ArrayList<>(numOps);
+        List<Message> sent = new ArrayList<>();
+        int clock = 0;
+        for (int i = 0; i < numOps; i++) {
+            int roll = random.nextInt(100);
+            String sender = sender(pickSender(random, cumulative, total));
+            if (roll < insertPercent) {
+                if (duplicate > 0 && !sent.isEmpty() && random.nextDouble() < duplicate) {
+                    Message earlier = sent.get(random.nextInt(sent.size()));
+                    ops.add(new Operation(Type.INSERT, new Message(earlier.getUser(),
+                            earlier.getText(), earlier.getTimestamp()), null, 0, 0));
+                    continue;
+                }
+                clock += random.nextInt(3);
+                int ts = clock;
+                if (random.nextDouble() < disorder) {
+                    ts = Math.max(0, clock - 1 - random.nextInt(maxLag + 1));
+                }
+                Message message = new Message(sender, "msg" + i, ts);
+                if (duplicate > 0) {
+                    sent.add(message);
+                }
+                ops.add(new Operation(Type.INSERT, message, null, 0, 0));
+            } else if (roll < insertPercent + queryPercent) {
+                int from = clock == 0 ? 0 : random.nextInt(clock + 1);
+                switch (random.nextInt(6)) {
+                    case 0 -> ops.add(new Operation(Type.COUNT, null, sender, 0, 0));
+                    case 1 -> ops.add(new Operation(Type.RANGE, null, null, from, from + random.nextInt(100)));
+                    case 2 -> ops.add(new Operation(Type.WINDOW, null, null, from, random.nextInt(10)));
+                    case 3 -> ops.add(new Operation(Type.FLOOR, null, null, from, 0));
+                    case 4 -> ops.add(new Operation(Type.CEILING, null, null, from, 0));
+                    default -> ops.add(new Operation(Type.INDEX_OF, null, null, from, 0));
+                }
+            } else if (random.nextInt(4) == 0) {
+                ops.add(new Operation(Type.DELETE_SENDER, null, sender, 0, 0));
+            } else {
+                int from = clock == 0 ? 0 : random.nextInt(clock + 1);
+                ops.add(new Operation(Type.DELETE_RANGE, null, null, from, from + random.nextInt(10)));
+            }
+        }
+        return ops;
+    }
+
+    private int pickSender(Random random, double[] cumulative, double total) {
+        double target = random.nextDouble() * total;
+        int low = 0;
+        int high = cumulative.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (cumulative[mid] < target) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}